@@ -0,0 +1,484 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  The announce parameters, parsed in one pass from the raw query string,
+ *  without the servlet's parameter map.
+ *  The info hash and peer ID are percent-decoded straight into
+ *  20-byte arrays, and the numbers are parsed without Strings.
+ *
+ *  Same results as getParameter() with ISO-8859-1 query encoding,
+ *  as in announce.jsp: '+' is a space, the first of duplicate
+ *  parameters is used, and a parameter without '=' is present and empty.
+ *  A parameter with a bad percent escape is ignored.
+ *
+ *  Also used by scrape.jsp, for the info hashes only.
+ *
+ *  @since 0.20.0
+ */
+public class AnnounceQuery {
+
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_STARTED = 1;
+    public static final int EVENT_COMPLETED = 2;
+    public static final int EVENT_STOPPED = 3;
+    /** returned by parseNumber() */
+    private static final long INVALID = Long.MIN_VALUE;
+    private static final int HASH_LEN = InfoHash.LENGTH;
+
+    private byte[] _infoHash;
+    private int _infoHashLength = -1;
+    private byte[] _peerID;
+    private int _peerIDLength = -1;
+    private String _ip;
+    private long _left = INVALID;
+    private long _numWant = INVALID;
+    private int _event = EVENT_NONE;
+    private boolean _compact;
+    // for first-wins
+    private boolean _hasEvent, _hasLeft, _hasNumWant;
+
+    private AnnounceQuery() {}
+
+    /**
+     *  @param query the raw query string, undecoded, may be null
+     *  @return non-null
+     */
+    public static AnnounceQuery parse(String query) {
+        AnnounceQuery rv = new AnnounceQuery();
+        if (query == null)
+            return rv;
+        int len = query.length();
+        int start = 0;
+        while (start <= len) {
+            int end = query.indexOf('&', start);
+            if (end < 0)
+                end = len;
+            int eq = query.indexOf('=', start);
+            if (eq < 0 || eq > end)
+                eq = end;
+            rv.param(query, start, eq, eq < end ? eq + 1 : end, end);
+            start = end + 1;
+        }
+        return rv;
+    }
+
+    /**
+     *  All the info_hash values, for a scrape, in order,
+     *  including duplicates and any of the wrong length.
+     *  An info_hash with a bad percent escape is a zero-length value,
+     *  not ignored as in parse(), so the caller can tell it from
+     *  no info_hash at all.
+     *  Stops after max + 1, so the caller can tell there were too many.
+     *
+     *  @param query the raw query string, undecoded, may be null
+     *  @return non-null, the decoded values, of any length
+     */
+    public static List<byte[]> parseInfoHashes(String query, int max) {
+        if (query == null)
+            return Collections.emptyList();
+        List<byte[]> rv = new ArrayList<byte[]>();
+        int len = query.length();
+        int start = 0;
+        while (start <= len && rv.size() <= max) {
+            int end = query.indexOf('&', start);
+            if (end < 0)
+                end = len;
+            int eq = query.indexOf('=', start);
+            if (eq < 0 || eq > end)
+                eq = end;
+            if (start < eq && keyEquals(query, start, eq, "info_hash")) {
+                int vs = eq < end ? eq + 1 : end;
+                byte[] buf = new byte[HASH_LEN];
+                int n = decode(query, vs, end, buf);
+                if (n != HASH_LEN) {
+                    // only the length is used, for the error message
+                    buf = new byte[Math.max(n, 0)];
+                }
+                rv.add(buf);
+            }
+            start = end + 1;
+        }
+        return rv;
+    }
+
+    /**
+     *  One parameter, key [ks, ke), value [vs, ve)
+     */
+    private void param(String q, int ks, int ke, int vs, int ve) {
+        if (ks == ke || !validEscapes(q, ks, ve))
+            return;
+        if (_infoHashLength < 0 && keyEquals(q, ks, ke, "info_hash")) {
+            byte[] buf = new byte[HASH_LEN];
+            int n = decode(q, vs, ve, buf);
+            if (n >= 0) {
+                _infoHashLength = n;
+                if (n == HASH_LEN)
+                    _infoHash = buf;
+            }
+        } else if (_peerIDLength < 0 && keyEquals(q, ks, ke, "peer_id")) {
+            byte[] buf = new byte[HASH_LEN];
+            int n = decode(q, vs, ve, buf);
+            if (n >= 0) {
+                _peerIDLength = n;
+                if (n == HASH_LEN)
+                    _peerID = buf;
+            }
+        } else if (!_hasLeft && keyEquals(q, ks, ke, "left")) {
+            _hasLeft = true;
+            _left = parseNumber(q, vs, ve, Long.MAX_VALUE);
+        } else if (!_hasNumWant && keyEquals(q, ks, ke, "numwant")) {
+            _hasNumWant = true;
+            _numWant = parseNumber(q, vs, ve, Integer.MAX_VALUE);
+        } else if (!_hasEvent && keyEquals(q, ks, ke, "event")) {
+            _hasEvent = true;
+            if (valueEquals(q, vs, ve, "stopped"))
+                _event = EVENT_STOPPED;
+            else if (valueEquals(q, vs, ve, "completed"))
+                _event = EVENT_COMPLETED;
+            else if (valueEquals(q, vs, ve, "started"))
+                _event = EVENT_STARTED;
+        } else if (_ip == null && keyEquals(q, ks, ke, "ip")) {
+            byte[] buf = new byte[ve - vs];
+            int n = decode(q, vs, ve, buf);
+            if (n >= 0) {
+                char[] c = new char[n];
+                for (int i = 0; i < n; i++) {
+                    c[i] = (char) (buf[i] & 0xff);
+                }
+                _ip = new String(c);
+            }
+        } else if (!_compact && keyEquals(q, ks, ke, "compact")) {
+            _compact = true;
+        }
+    }
+
+    /**
+     *  @return the 20 byte info hash, or null if absent, malformed, or not 20 bytes
+     */
+    public byte[] getInfoHash() {
+        return _infoHash;
+    }
+
+    /**
+     *  @return decoded length, or -1 if absent or malformed
+     */
+    public int getInfoHashLength() {
+        return _infoHashLength;
+    }
+
+    /**
+     *  @return the 20 byte peer ID, or null if absent, malformed, or not 20 bytes
+     */
+    public byte[] getPeerID() {
+        return _peerID;
+    }
+
+    /**
+     *  @return decoded length, or -1 if absent or malformed
+     */
+    public int getPeerIDLength() {
+        return _peerIDLength;
+    }
+
+    /**
+     *  @return may be null
+     */
+    public String getIP() {
+        return _ip;
+    }
+
+    /**
+     *  @param def if absent or not a number
+     */
+    public long getLeft(long def) {
+        return _left != INVALID ? _left : def;
+    }
+
+    /**
+     *  @param def if absent or not a number
+     */
+    public int getNumWant(int def) {
+        return _numWant != INVALID ? (int) _numWant : def;
+    }
+
+    /**
+     *  @return one of the EVENT_ constants, EVENT_NONE if absent or unknown
+     */
+    public int getEvent() {
+        return _event;
+    }
+
+    public boolean isCompact() {
+        return _compact;
+    }
+
+    /**
+     *  @return true if every '%' in s[from, to) is followed by two hex digits
+     */
+    private static boolean validEscapes(String s, int from, int to) {
+        for (int i = s.indexOf('%', from); i >= 0 && i < to; i = s.indexOf('%', i + 3)) {
+            if (i + 3 > to || hex(s.charAt(i + 1)) < 0 || hex(s.charAt(i + 2)) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Percent-decode s[from, to) into buf, '+' is a space.
+     *  Stores only what fits in buf.
+     *
+     *  @return the decoded length, may be larger than buf, or -1 if a bad escape
+     */
+    private static int decode(String s, int from, int to, byte[] buf) {
+        int n = 0;
+        for (int i = from; i < to; ) {
+            int c = s.charAt(i++);
+            if (c == '%') {
+                if (i + 2 > to)
+                    return -1;
+                int hi = hex(s.charAt(i++));
+                int lo = hex(s.charAt(i++));
+                if (hi < 0 || lo < 0)
+                    return -1;
+                c = (hi << 4) | lo;
+            } else if (c == '+') {
+                c = ' ';
+            }
+            if (n < buf.length)
+                buf[n] = (byte) c;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     *  Does the percent-decoding of s[from, to) equal the ASCII key
+     */
+    private static boolean keyEquals(String s, int from, int to, String key) {
+        int n = 0;
+        int klen = key.length();
+        for (int i = from; i < to; ) {
+            int c = s.charAt(i++);
+            if (c == '%') {
+                if (i + 2 > to)
+                    return false;
+                int hi = hex(s.charAt(i++));
+                int lo = hex(s.charAt(i++));
+                if (hi < 0 || lo < 0)
+                    return false;
+                c = (hi << 4) | lo;
+            } else if (c == '+') {
+                c = ' ';
+            }
+            if (n >= klen || key.charAt(n) != c)
+                return false;
+            n++;
+        }
+        return n == klen;
+    }
+
+    private static boolean valueEquals(String s, int from, int to, String value) {
+        return keyEquals(s, from, to, value);
+    }
+
+    /**
+     *  Percent-decode and parse a decimal number,
+     *  with an optional sign, as Long.parseLong() does.
+     *
+     *  @param max Integer.MAX_VALUE or Long.MAX_VALUE
+     *  @return the number, or INVALID if not a number or out of range.
+     *          Long.MIN_VALUE itself is also returned as INVALID,
+     *          callers treat both as 0 or the default.
+     */
+    private static long parseNumber(String s, int from, int to, long max) {
+        // accumulate negatively, as in Long.parseLong(), so MIN_VALUE fits
+        long rv = 0;
+        boolean neg = false;
+        boolean first = true;
+        int digits = 0;
+        long limit = -max;
+        for (int i = from; i < to; ) {
+            int c = s.charAt(i++);
+            if (c == '%') {
+                if (i + 2 > to)
+                    return INVALID;
+                int hi = hex(s.charAt(i++));
+                int lo = hex(s.charAt(i++));
+                if (hi < 0 || lo < 0)
+                    return INVALID;
+                c = (hi << 4) | lo;
+            } else if (c == '+') {
+                c = ' ';
+            }
+            if (first) {
+                first = false;
+                if (c == '-') {
+                    neg = true;
+                    limit = -max - 1;
+                    continue;
+                }
+                if (c == '+')
+                    continue;
+            }
+            if (c < '0' || c > '9')
+                return INVALID;
+            int d = c - '0';
+            if (rv < limit / 10)
+                return INVALID;
+            rv *= 10;
+            if (rv < limit + d)
+                return INVALID;
+            rv -= d;
+            digits++;
+        }
+        if (digits == 0)
+            return INVALID;
+        return neg ? rv : -rv;
+    }
+
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        return -1;
+    }
+
+/****
+    // fuzz against the String path, as announce.jsp parses
+    public static void main(String[] args) throws Exception {
+        java.util.Random r = new java.util.Random();
+        String[] keys = { "info_hash", "peer_id", "left", "numwant", "event", "ip", "compact",
+                          "info%5Fhash", "port", "x", "" };
+        String[] events = { "started", "completed", "stopped", "st%6Fpped", "", "foo" };
+        int runs = 1000000;
+        for (int i = 0; i < runs; i++) {
+            StringBuilder buf = new StringBuilder();
+            int n = r.nextInt(10);
+            for (int j = 0; j < n; j++) {
+                if (j > 0)
+                    buf.append('&');
+                String k = keys[r.nextInt(keys.length)];
+                buf.append(k);
+                if (r.nextInt(8) == 0)
+                    continue;
+                buf.append('=');
+                if (k.equals("event")) {
+                    buf.append(events[r.nextInt(events.length)]);
+                } else if (k.equals("left") || k.equals("numwant")) {
+                    buf.append(randomNumber(r));
+                } else {
+                    buf.append(randomBytes(r, k.contains("hash") || k.equals("peer_id") ? 20 : r.nextInt(40)));
+                }
+            }
+            String q = buf.toString();
+            java.util.Map<String, String> ref = reference(q);
+            AnnounceQuery aq = parse(q);
+            check(q, ref.get("info_hash"), aq.getInfoHash(), aq.getInfoHashLength());
+            check(q, ref.get("peer_id"), aq.getPeerID(), aq.getPeerIDLength());
+            check(q, ref.get("ip"), aq.getIP());
+            check(q, ref.containsKey("compact"), aq.isCompact());
+            long left = 0;
+            try {
+                left = Long.parseLong(ref.get("left"));
+                if (left < 0)
+                    left = 0;
+            } catch (NumberFormatException nfe) {}
+            long left2 = Math.max(0, aq.getLeft(0));
+            check(q, left, left2);
+            int want = 25;
+            try {
+                want = Integer.parseInt(ref.get("numwant"));
+            } catch (NumberFormatException nfe) {}
+            check(q, want, aq.getNumWant(25));
+            String ev = ref.get("event");
+            int event = "stopped".equals(ev) ? EVENT_STOPPED : "completed".equals(ev) ? EVENT_COMPLETED :
+                        "started".equals(ev) ? EVENT_STARTED : EVENT_NONE;
+            check(q, event, aq.getEvent());
+        }
+        System.out.println("Passed " + runs);
+    }
+
+    private static String randomNumber(java.util.Random r) {
+        switch (r.nextInt(6)) {
+            case 0: return Long.toString(r.nextLong());
+            case 1: return Integer.toString(r.nextInt(100));
+            case 2: return "%2D" + r.nextInt(100);
+            case 3: return "9223372036854775808";
+            case 4: return "-2147483648";
+            default: return "+" + r.nextInt(10);
+        }
+    }
+
+    private static String randomBytes(java.util.Random r, int len) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < len; i++) {
+            int c = r.nextInt(256);
+            if (r.nextInt(50) == 0)
+                buf.append("%G");
+            else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+')
+                buf.append((char) c);
+            else
+                buf.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0x0f, 16));
+        }
+        return buf.toString();
+    }
+
+    // first wins, malformed values absent, as Jetty does
+    private static java.util.Map<String, String> reference(String q) throws Exception {
+        java.util.Map<String, String> rv = new java.util.HashMap<String, String>();
+        for (String p : q.split("&")) {
+            if (p.length() == 0)
+                continue;
+            int eq = p.indexOf('=');
+            String k, v;
+            try {
+                k = java.net.URLDecoder.decode(eq >= 0 ? p.substring(0, eq) : p, "ISO-8859-1");
+                v = eq >= 0 ? java.net.URLDecoder.decode(p.substring(eq + 1), "ISO-8859-1") : "";
+            } catch (IllegalArgumentException iae) {
+                continue;
+            }
+            if (!rv.containsKey(k))
+                rv.put(k, v);
+        }
+        return rv;
+    }
+
+    private static void check(String q, String ref, byte[] b, int len) {
+        if (ref == null) {
+            if (len >= 0)
+                throw new RuntimeException("Fail: " + q);
+            return;
+        }
+        if (ref.length() != len)
+            throw new RuntimeException("Fail: " + q);
+        if (len == 20 && !java.util.Arrays.equals(b, net.i2p.data.DataHelper.getASCII(ref)))
+            throw new RuntimeException("Fail: " + q);
+    }
+
+    private static void check(String q, Object ref, Object val) {
+        if (ref == null ? val != null : !ref.equals(val))
+            throw new RuntimeException("Fail: " + q + " expected " + ref + " got " + val);
+    }
+****/
+}
@@ -0,0 +1,330 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+
+/**
+ *  Announces, the same as announce.jsp, but the reply has a fixed shape,
+ *  so it is bencoded by hand into a per-thread buffer,
+ *  without a Map, boxed integers, or a peer array.
+ *
+ *  announce.jsp is still there, and this forwards to it
+ *  if announceServlet=false in the config.
+ *
+ *  The query is parsed from the raw query string by AnnounceQuery,
+ *  not with getParameter().
+ *
+ *  @since 0.20.0
+ */
+public class AnnounceServlet extends HttpServlet {
+
+    private static final int MAX_RESPONSES = 25;
+    private static final boolean ALLOW_IP_MISMATCH = false;
+    private static final String JSP = "/announce.jsp";
+    private static final int HASH_LEN = 32;
+    /** the hashes go here first, the reply header is shorter than this */
+    private static final int HASH_OFF = 128;
+    private static final int BUFSIZE = HASH_OFF + (MAX_RESPONSES * HASH_LEN);
+    private static final ThreadLocal<byte[]> _buf = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFSIZE];
+        }
+    };
+    /** seeds and leeches, from Peers.getRandomHashes() */
+    private static final ThreadLocal<int[]> _counts = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    // keys in sorted order, as required
+    private static final byte[] COMPLETE = DataHelper.getASCII("d8:completei");
+    private static final byte[] INCOMPLETE = DataHelper.getASCII("e10:incompletei");
+    private static final byte[] INTERVAL = DataHelper.getASCII("e8:intervali");
+    private static final byte[] STOPPED = DataHelper.getASCII("d8:intervali");
+    private static final byte[] PEERS = DataHelper.getASCII("e5:peers");
+    private static final byte[] EMPTY = DataHelper.getASCII("le");
+    private static final byte[] FAILURE = DataHelper.getASCII("d14:failure reason");
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        if (!ZzzOTController.useAnnounceServlet()) {
+            getServletContext().getRequestDispatcher(JSP).forward(request, response);
+            return;
+        }
+
+        response.setCharacterEncoding("ISO-8859-1");
+        response.setContentType("text/plain");
+        response.setHeader("Pragma", "no-cache");
+        AnnounceQuery q = AnnounceQuery.parse(request.getQueryString());
+        String ip = q.getIP();
+        int event = q.getEvent();
+        // use to enforce destination
+        String him = request.getHeader("X-I2P-DestB64");
+        String himHash = request.getHeader("X-I2P-DestHash");
+        String xff = request.getHeader("X-Forwarded-For");
+        String xfs = request.getHeader("X-Forwarded-Server");
+
+        RequestThrottle throttle = ZzzOTController.getThrottle();
+
+        String msg = null;
+        if (xff != null || xfs != null) {
+            msg = "Non-I2P access denied";
+            response.setStatus(403);
+        } else if (throttle != null && !throttle.allow(RequestThrottle.ANNOUNCE, himHash)) {
+            // per-requestor, before doing any work
+            msg = "rate limited";
+        } else if (!q.isCompact()) {
+            msg = "non-compact responses unsupported";
+        } else if (q.getInfoHashLength() < 0) {
+            msg = "no info hash";
+        } else if (q.getInfoHashLength() != 20) {
+            msg = "bad info hash length " + q.getInfoHashLength();
+        } else if (ip == null) {
+            msg = "no ip (dest)";
+        } else if (q.getPeerIDLength() < 0) {
+            msg = "no peer id";
+        } else if (q.getPeerIDLength() != 20) {
+            msg = "bad peer id length " + q.getPeerIDLength();
+        }
+
+        Torrents torrents = ZzzOTController.getTorrents();
+        if (torrents == null && msg == null)
+            msg = "tracker is down";
+
+        InfoHash ih = null;
+        if (msg == null) {
+            try {
+                ih = torrents.createInfoHash(q.getInfoHash());
+            } catch (IllegalArgumentException e) {
+                msg = "bad infohash " + e;
+            }
+        }
+
+        Hash h = null;
+        if (msg == null) {
+            if (ip.endsWith(".i2p"))
+                ip = ip.substring(0, ip.length() - 4);
+            // cached, and the tunnel's hash header is trusted only for its own dest
+            h = torrents.createDestHash(ip, ip.equals(him) ? himHash : null);
+            if (h == null)
+                msg = "bad dest";
+        }
+
+        PID pid = null;
+        if (msg == null) {
+            try {
+                pid = torrents.createPID(q.getPeerID());
+            } catch (IllegalArgumentException e) {
+                msg = "bad peer id " + e;
+            }
+        }
+
+        int want = q.getNumWant(MAX_RESPONSES);
+        if (want > MAX_RESPONSES)
+            want = MAX_RESPONSES;
+        else if (want < 0)
+            want = 0;
+
+        // spoof check
+        // if him == null, we are not using the I2P HTTP server tunnel, or something is wrong
+        boolean matchIP = ALLOW_IP_MISMATCH || him == null || ip == null || ip.equals(him);
+        if (want <= 0 && !matchIP && msg == null)
+            msg = "ip mismatch";
+
+        long left = 0;
+        if (event != AnnounceQuery.EVENT_COMPLETED) {
+            left = q.getLeft(0);
+            if (left < 0)
+                left = 0;
+        }
+
+        byte[] buf = _buf.get();
+        int len;
+        if (msg != null) {
+            byte[] m = DataHelper.getUTF8(msg);
+            buf = new byte[FAILURE.length + 16 + m.length];
+            len = put(buf, 0, FAILURE);
+            len = putInt(buf, len, m.length);
+            buf[len++] = ':';
+            len = put(buf, len, m);
+            buf[len++] = 'e';
+        } else if (event == AnnounceQuery.EVENT_STOPPED) {
+            Peers peers = torrents.get(ih);
+            if (matchIP && peers != null)
+                peers.remove(pid);
+            len = put(buf, 0, STOPPED);
+            len = putInt(buf, len, torrents.getInterval());
+            buf[len++] = 'e';
+            buf[len++] = 'e';
+        } else {
+            Peers peers = torrents.get(ih);
+            if (peers == null) {
+                peers = torrents.createPeers(ih);
+                Peers p2 = torrents.putIfAbsent(ih, peers);
+                if (p2 != null)
+                    peers = p2;
+            }
+
+            // fixme same peer id, different dest
+            Peer p = peers.get(pid);
+            if (p == null) {
+                p = new Peer(pid.getData(), h);
+                // don't add if spoofed
+                if (matchIP) {
+                    Peer p2 = peers.putIfAbsent(pid, p);
+                    if (p2 != null)
+                        p = p2;
+                }
+            }
+            // don't update if spoofed
+            if (matchIP)
+                p.setLeft(left);
+            // not including them, and no seeds to seeds
+            len = writeReply(buf, torrents.getInterval(), peers, want, pid, left <= 0);
+        }
+        response.setContentLength(len);
+        OutputStream out = response.getOutputStream();
+        out.write(buf, 0, len);
+    }
+
+    /**
+     *  Bencode the compact announce reply.
+     *  Same as BEncoder with a Map of
+     *  interval, complete, incomplete, and peers.
+     *
+     *  @param buf at least BUFSIZE
+     *  @return the length
+     */
+    static int writeReply(byte[] buf, int interval, Peers peers, int want, PID pid, boolean isSeed) {
+        // the counts and the hashes under one lock
+        int[] counts = _counts.get();
+        int hashes = peers.getRandomHashes(Math.max(want, 0), pid, isSeed, buf, HASH_OFF, counts);
+        int len = put(buf, 0, COMPLETE);
+        len = putInt(buf, len, counts[0]);
+        len = put(buf, len, INCOMPLETE);
+        len = putInt(buf, len, counts[1]);
+        len = put(buf, len, INTERVAL);
+        len = putInt(buf, len, interval);
+        len = put(buf, len, PEERS);
+        if (want <= 0) {
+            // snark < 0.7.13 always wants a list
+            len = put(buf, len, EMPTY);
+        } else {
+            int hlen = hashes * HASH_LEN;
+            len = putInt(buf, len, hlen);
+            buf[len++] = ':';
+            // len is still less than HASH_OFF
+            System.arraycopy(buf, HASH_OFF, buf, len, hlen);
+            len += hlen;
+        }
+        buf[len++] = 'e';
+        return len;
+    }
+
+    /**
+     *  @return the new offset
+     */
+    private static int put(byte[] buf, int off, byte[] s) {
+        System.arraycopy(s, 0, buf, off, s.length);
+        return off + s.length;
+    }
+
+    /**
+     *  Decimal ASCII, without a String
+     *
+     *  @param v non-negative
+     *  @return the new offset
+     */
+    private static int putInt(byte[] buf, int off, long v) {
+        if (v == 0) {
+            buf[off] = '0';
+            return off + 1;
+        }
+        int digits = 0;
+        for (long t = v; t > 0; t /= 10) {
+            digits++;
+        }
+        for (int i = off + digits - 1; i >= off; i--) {
+            buf[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        return off + digits;
+    }
+
+/****
+    public static void main(String[] args) throws Exception {
+        int n = 1000;
+        Peers peers = new Peers();
+        java.util.Random r = new java.util.Random();
+        PID[] pids = new PID[n];
+        for (int i = 0; i < n; i++) {
+            byte[] id = new byte[20];
+            byte[] h = new byte[32];
+            r.nextBytes(id);
+            r.nextBytes(h);
+            pids[i] = new PID(id);
+            Peer p = new Peer(id, new net.i2p.data.Hash(h));
+            peers.putIfAbsent(pids[i], p);
+            p.setLeft(r.nextInt(2));
+        }
+        int runs = 2000000;
+        java.lang.management.ThreadMXBean tmx = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) tmx;
+        long tid = Thread.currentThread().getId();
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream(BUFSIZE);
+        byte[] buf = new byte[BUFSIZE];
+        for (int pass = 0; pass < 2; pass++) {
+            // as in announce.jsp
+            long a0 = smx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                PID pid = pids[i % n];
+                java.util.Map<String, Object> m = new java.util.HashMap<String, Object>(8);
+                m.put("interval", 1620);
+                m.put("complete", Integer.valueOf(peers.countSeeds()));
+                m.put("incomplete", Integer.valueOf(peers.countLeeches()));
+                m.put("peers", peers.getRandomHashes(MAX_RESPONSES, pid, false));
+                baos.reset();
+                org.klomp.snark.bencode.BEncoder.bencode(m, baos);
+            }
+            long t1 = System.nanoTime();
+            long a1 = smx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < runs; i++) {
+                PID pid = pids[i % n];
+                int len = writeReply(buf, 1620, peers, MAX_RESPONSES, pid, false);
+                baos.reset();
+                baos.write(buf, 0, len);
+            }
+            long t2 = System.nanoTime();
+            long a2 = smx.getThreadAllocatedBytes(tid);
+            System.out.println("BEncoder: " + ((t1 - t0) / runs) + " ns, " + ((a1 - a0) / runs) + " bytes per announce");
+            System.out.println("Servlet:  " + ((t2 - t1) / runs) + " ns, " + ((a2 - a1) / runs) + " bytes per announce");
+        }
+    }
+****/
+}
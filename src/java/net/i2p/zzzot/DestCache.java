@@ -0,0 +1,276 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+/**
+ *  Destinations for UDP replies, by hash.
+ *  Added on connect, used for each announce.
+ *
+ *  Striped LRU maps, each with its own lock, and TinyLFU admission:
+ *  when a stripe is full, a new destination only replaces one of the
+ *  least recently used ones if it has been seen at least as often recently,
+ *  according to a small count-min sketch that is halved periodically.
+ *  So a burst of one-time connects can't flush out the clients
+ *  that announce regularly.
+ *
+ *  The capacity is set from the connect rate, see setCapacity().
+ *
+ *  @since 0.20.0
+ */
+class DestCache {
+
+    private static final int STRIPES = 16;
+    public static final int MIN_CAPACITY = 1024;
+    /** about 400 bytes each */
+    public static final int MAX_CAPACITY = 32768;
+    /** 4 counters per entry at max capacity, one byte each */
+    private static final int SKETCH_SIZE = 4 * MAX_CAPACITY;
+    private static final int SKETCH_MASK = SKETCH_SIZE - 1;
+    private static final int MAX_COUNT = 15;
+    /** halve all the counts after this many increments */
+    private static final int SAMPLE_SIZE = 10 * MAX_CAPACITY;
+    /** least recently used entries to consider for eviction */
+    private static final int VICTIMS = 4;
+
+    private final Map<Hash, Destination>[] _stripes;
+    private volatile int _perStripe;
+    private final byte[] _sketch = new byte[SKETCH_SIZE];
+    private final AtomicInteger _samples = new AtomicInteger();
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public DestCache(int capacity) {
+        _stripes = (Map<Hash, Destination>[]) new Map[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            // access order
+            _stripes[i] = new LinkedHashMap<Hash, Destination>(64, 0.75f, true);
+        }
+        setCapacity(capacity);
+    }
+
+    /**
+     *  @return null if not found
+     */
+    public Destination get(Hash h) {
+        increment(h);
+        Map<Hash, Destination> map = stripe(h);
+        Destination rv;
+        synchronized(map) {
+            rv = map.get(h);
+        }
+        if (rv != null)
+            _hits.increment();
+        else
+            _misses.increment();
+        return rv;
+    }
+
+    /**
+     *  Add it, if it's already here, if there's room,
+     *  or if it's seen as often as one of the least recently used ones.
+     */
+    public void put(Hash h, Destination d) {
+        increment(h);
+        put(h, d, true);
+    }
+
+    /**
+     *  Add it, evicting the least recently used one if necessary.
+     *  For loading the saved state, and for lookup results,
+     *  which are for someone we know is announcing.
+     */
+    public void putUnchecked(Hash h, Destination d) {
+        put(h, d, false);
+    }
+
+    private void put(Hash h, Destination d, boolean admit) {
+        Map<Hash, Destination> map = stripe(h);
+        int max = _perStripe;
+        synchronized(map) {
+            if (map.size() < max || map.containsKey(h)) {
+                map.put(h, d);
+                return;
+            }
+            if (admit) {
+                // the least frequent of the few least recently used
+                Hash victim = null;
+                int vf = Integer.MAX_VALUE;
+                Iterator<Hash> iter = map.keySet().iterator();
+                for (int i = 0; i < VICTIMS && iter.hasNext(); i++) {
+                    Hash v = iter.next();
+                    int f = frequency(v);
+                    if (f < vf) {
+                        victim = v;
+                        vf = f;
+                    }
+                }
+                if (frequency(h) < vf) {
+                    _rejected.increment();
+                    return;
+                }
+                map.remove(victim);
+                _evictions.increment();
+            }
+            // also shrink if the capacity went down
+            Iterator<Hash> iter = map.keySet().iterator();
+            while (map.size() >= max && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+                _evictions.increment();
+            }
+            map.put(h, d);
+        }
+    }
+
+    /**
+     *  The stripes shrink lazily after the capacity goes down,
+     *  so this skips the least recently used entries over the capacity.
+     *
+     *  @return at most getCapacity(), least recently used first, within each stripe
+     */
+    public List<Destination> values() {
+        int max = _perStripe;
+        List<Destination> rv = new ArrayList<Destination>(Math.min(size(), max * STRIPES));
+        for (Map<Hash, Destination> map : _stripes) {
+            synchronized(map) {
+                int skip = map.size() - max;
+                for (Destination d : map.values()) {
+                    if (skip-- > 0)
+                        continue;
+                    rv.add(d);
+                }
+            }
+        }
+        return rv;
+    }
+
+    public int size() {
+        int rv = 0;
+        for (Map<Hash, Destination> map : _stripes) {
+            synchronized(map) {
+                rv += map.size();
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Bounded by MIN_CAPACITY and MAX_CAPACITY.
+     *  If smaller than now, the stripes shrink as entries are added.
+     */
+    public void setCapacity(int capacity) {
+        capacity = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, capacity));
+        _perStripe = capacity / STRIPES;
+    }
+
+    public int getCapacity() {
+        return _perStripe * STRIPES;
+    }
+
+    /**
+     *  Resets the counters to zero.
+     *
+     *  @return the hit percentage since the last call, or -1 if no lookups
+     */
+    public int getHitRate() {
+        long hits = _hits.sumThenReset();
+        long misses = _misses.sumThenReset();
+        long total = hits + misses;
+        if (total <= 0)
+            return -1;
+        return (int) ((100 * hits) / total);
+    }
+
+    /**
+     *  Resets the counter to zero.
+     */
+    public long getEvictions() {
+        return _evictions.sumThenReset();
+    }
+
+    /**
+     *  Not admitted because seen less often than the one it would replace.
+     *  Resets the counter to zero.
+     */
+    public long getRejected() {
+        return _rejected.sumThenReset();
+    }
+
+    public void clear() {
+        for (Map<Hash, Destination> map : _stripes) {
+            synchronized(map) {
+                map.clear();
+            }
+        }
+    }
+
+    private Map<Hash, Destination> stripe(Hash h) {
+        return _stripes[h.getData()[31] & (STRIPES - 1)];
+    }
+
+    /**
+     *  Unsynchronized. A lost update just makes a count a little low.
+     */
+    private void increment(Hash h) {
+        byte[] b = h.getData();
+        for (int i = 0; i < 4; i++) {
+            int idx = index(b, i);
+            if (_sketch[idx] < MAX_COUNT)
+                _sketch[idx]++;
+        }
+        if (_samples.incrementAndGet() >= SAMPLE_SIZE) {
+            _samples.set(0);
+            for (int i = 0; i < SKETCH_SIZE; i++) {
+                _sketch[i] >>= 1;
+            }
+        }
+    }
+
+    /**
+     *  @return the min of the four counts
+     */
+    private int frequency(Hash h) {
+        byte[] b = h.getData();
+        int rv = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            rv = Math.min(rv, _sketch[index(b, i)]);
+        }
+        return rv;
+    }
+
+    /**
+     *  The hash is random, so use 4 different pieces of it.
+     *  Not the last byte, that's for the stripe.
+     */
+    private static int index(byte[] b, int i) {
+        int off = i * 4;
+        return (((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) |
+                ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff)) & SKETCH_MASK;
+    }
+}
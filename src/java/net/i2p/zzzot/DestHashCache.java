@@ -0,0 +1,127 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.data.Base64;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.LHMCache;
+
+/**
+ *  The hash of the Base 64 destination in an HTTP announce.
+ *  The same peers announce every interval, so cache it,
+ *  instead of decoding and parsing the destination
+ *  and calculating its hash every time.
+ *
+ *  Striped LRU caches, each with its own lock.
+ *
+ *  @since 0.20.0
+ */
+class DestHashCache {
+
+    private static final int STRIPES = 16;
+    private final Map<String, Hash>[] _caches;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+
+    /**
+     *  @param size total max entries
+     */
+    @SuppressWarnings("unchecked")
+    public DestHashCache(int size) {
+        _caches = (Map<String, Hash>[]) new Map[STRIPES];
+        int per = Math.max(16, size / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            _caches[i] = new LHMCache<String, Hash>(per);
+        }
+    }
+
+    /**
+     *  @param b64 the Base 64 destination, without a trailing ".i2p"
+     *  @param b64Hash the Base 64 hash of b64, as from the X-I2P-DestHash header,
+     *                 used on a miss instead of parsing b64.
+     *                 Only pass it if b64 is known to be the requester's
+     *                 destination, i.e. the X-I2P-DestB64 header.
+     *                 May be null.
+     *  @return the hash, or null if b64 is not a valid destination
+     */
+    public Hash get(String b64, String b64Hash) {
+        Map<String, Hash> cache = _caches[(b64.hashCode() & 0x7fffffff) % STRIPES];
+        Hash rv;
+        synchronized(cache) {
+            rv = cache.get(b64);
+        }
+        if (rv != null) {
+            _hits.increment();
+            return rv;
+        }
+        _misses.increment();
+        rv = decode(b64, b64Hash);
+        if (rv != null) {
+            synchronized(cache) {
+                cache.put(b64, rv);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  @return null on failure
+     */
+    private static Hash decode(String b64, String b64Hash) {
+        if (b64Hash != null) {
+            byte[] h = Base64.decode(b64Hash);
+            if (h != null && h.length == Hash.HASH_LENGTH)
+                return Hash.create(h);
+        }
+        byte[] b = Base64.decode(b64);
+        if (b == null)
+            return null;
+        try {
+            Destination d = Destination.create(new ByteArrayInputStream(b));  // cache
+            return d.calculateHash();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Resets the counters to zero.
+     *
+     *  @return the hit percentage since the last call, or -1 if no lookups
+     */
+    public int getHitRate() {
+        long hits = _hits.sumThenReset();
+        long misses = _misses.sumThenReset();
+        long total = hits + misses;
+        if (total <= 0)
+            return -1;
+        return (int) ((100 * hits) / total);
+    }
+
+    public void clear() {
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized(_caches[i]) {
+                _caches[i].clear();
+            }
+        }
+        _hits.reset();
+        _misses.reset();
+    }
+}
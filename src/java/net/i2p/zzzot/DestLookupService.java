@@ -0,0 +1,332 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.I2PAppContext;
+import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionException;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+import net.i2p.util.Log;
+
+/**
+ *  Replies to UDP announces from destinations we don't have cached.
+ *
+ *  Until we have a nonblocking lookup API in I2CP, each lookup blocks
+ *  a thread, so there is only one lookup in flight per hash.
+ *  Replies to the same hash that arrive in the meantime are attached
+ *  to it, and they are all sent when it completes.
+ *
+ *  The total number of waiting replies is limited, as is the number
+ *  per hash. A reply waits at most twice the lookup timeout,
+ *  for a lookup slot and then for the lookup.
+ *
+ *  @since 0.20.0
+ */
+class DestLookupService {
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final Executor _executor;
+    private final DestCache _cache;
+    private final int _port;
+    private final long _timeout;
+    private final ConcurrentHashMap<Hash, Pending> _inflight = new ConcurrentHashMap<Hash, Pending>();
+    private final Semaphore _lookupLimit = new Semaphore(MAX_CONCURRENT_LOOKUPS);
+    /** waiting replies */
+    private final AtomicInteger _pending = new AtomicInteger();
+    private final LongAdder _queued = new LongAdder();
+    private final LongAdder _coalesced = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+
+    /** same as the platform thread pool max */
+    private static final int MAX_CONCURRENT_LOOKUPS = 25;
+    private static final int MAX_PENDING = 1000;
+    private static final int MAX_PER_DEST = 16;
+    static final String STAT_QUEUE = "plugin.zzzot.lookups.queue";
+    static final String STAT_COALESCED = "plugin.zzzot.lookups.coalesced";
+    static final String STAT_TIME = "plugin.zzzot.lookups.time";
+
+    /**
+     *  @param executor to run the blocking lookups
+     *  @param cache successful lookups are added to it
+     *  @param port our port, to send from
+     *  @param timeout for each lookup, in ms
+     */
+    public DestLookupService(I2PAppContext ctx, Executor executor, DestCache cache,
+                             int port, long timeout) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(DestLookupService.class);
+        _executor = executor;
+        _cache = cache;
+        _port = port;
+        _timeout = timeout;
+    }
+
+    /**
+     *  Nonblocking.
+     *  Look up the hash and send msg to it, or drop it if too busy.
+     */
+    public void send(I2PSession session, Hash hash, int toPort, byte[] msg) {
+        if (_pending.incrementAndGet() > MAX_PENDING) {
+            _pending.decrementAndGet();
+            _dropped.increment();
+            if (_log.shouldWarn())
+                _log.warn("error sending announce reply - too many pending lookups");
+            return;
+        }
+        Reply r = new Reply(toPort, msg);
+        _queued.increment();
+        while (true) {
+            Pending p = _inflight.get(hash);
+            if (p == null) {
+                Pending np = new Pending(session, hash, r);
+                p = _inflight.putIfAbsent(hash, np);
+                if (p == null) {
+                    try {
+                        _executor.execute(np);
+                    } catch (RejectedExecutionException ree) {
+                        np.fail();
+                        if (_log.shouldWarn())
+                            _log.warn("error sending announce reply - thread pool full");
+                    }
+                    return;
+                }
+            }
+            if (p.add(r))
+                return;
+            // it just completed, start another
+        }
+    }
+
+    /**
+     *  @return replies waiting for lookups now
+     */
+    public int getQueueDepth() {
+        return _pending.get();
+    }
+
+    /**
+     *  Resets the counters to zero.
+     *
+     *  @return the percentage of replies that joined a lookup already in flight,
+     *          since the last call, or -1 if none
+     */
+    public int getCoalescePercent() {
+        long queued = _queued.sumThenReset();
+        long coalesced = _coalesced.sumThenReset();
+        if (queued <= 0)
+            return -1;
+        return (int) ((100 * coalesced) / queued);
+    }
+
+    /**
+     *  Resets the counter to zero.
+     *
+     *  @return replies dropped since the last call
+     */
+    public long getDropped() {
+        return _dropped.sumThenReset();
+    }
+
+    /**
+     *  Blocking.
+     *  @return null on failure
+     */
+    private Destination lookupI2CP(I2PSession session, Hash hash) {
+        Destination rv;
+        try {
+            rv = session.lookupDest(hash, _timeout);
+        } catch (I2PSessionException ise) {
+            if (_log.shouldWarn())
+                _log.warn("lookup error", ise);
+            return null;
+        }
+        if (rv == null) {
+            if (_log.shouldWarn())
+                _log.warn("lookup failed for response to " + hash.toBase32());
+        }
+        return rv;
+    }
+
+    private static class Reply {
+        final int port;
+        final byte[] msg;
+
+        public Reply(int port, byte[] msg) {
+            this.port = port;
+            this.msg = msg;
+        }
+    }
+
+    /**
+     *  One lookup and the replies waiting for it
+     */
+    private class Pending implements Runnable {
+        private final I2PSession _session;
+        private final Hash _hash;
+        /** guarded by this, null when done */
+        private List<Reply> _replies;
+
+        public Pending(I2PSession sess, Hash h, Reply r) {
+            _session = sess;
+            _hash = h;
+            _replies = new ArrayList<Reply>(4);
+            _replies.add(r);
+        }
+
+        /**
+         *  Attach r, or drop it if there are too many for this hash.
+         *
+         *  @return false if already done, caller must start another
+         */
+        public synchronized boolean add(Reply r) {
+            if (_replies == null)
+                return false;
+            if (_replies.size() >= MAX_PER_DEST) {
+                // they're flooding us, keep the older ones
+                _pending.decrementAndGet();
+                _dropped.increment();
+                return true;
+            }
+            _replies.add(r);
+            _coalesced.increment();
+            return true;
+        }
+
+        /**
+         *  Remove from the in-flight map and take the replies.
+         *  Anything added after this goes to a new lookup.
+         */
+        private List<Reply> finish() {
+            _inflight.remove(_hash, this);
+            List<Reply> rv;
+            synchronized(this) {
+                rv = _replies;
+                _replies = null;
+            }
+            _pending.addAndGet(-rv.size());
+            return rv;
+        }
+
+        /**
+         *  Not run, drop them all
+         */
+        public void fail() {
+            _dropped.add(finish().size());
+        }
+
+        public void run() {
+            try {
+                // parks the thread, and with virtual threads, not a carrier
+                if (!_lookupLimit.tryAcquire(_timeout, TimeUnit.MILLISECONDS)) {
+                    if (_log.shouldWarn())
+                        _log.warn("error sending announce reply - lookups busy");
+                    fail();
+                    return;
+                }
+            } catch (InterruptedException ie) {
+                fail();
+                return;
+            }
+            Destination d;
+            try {
+                long start = System.currentTimeMillis();
+                // blocking
+                d = lookupI2CP(_session, _hash);
+                _context.statManager().addRateData(STAT_TIME, System.currentTimeMillis() - start);
+            } finally {
+                _lookupLimit.release();
+            }
+            if (d == null) {
+                if (_log.shouldWarn())
+                    _log.warn("deferred lookup failed for " + _hash.toBase32());
+                fail();
+                return;
+            }
+            // they're announcing, so always add it
+            _cache.putUnchecked(_hash, d);
+            List<Reply> replies = finish();
+            for (Reply r : replies) {
+                try {
+                    _session.sendMessage(d, r.msg, I2PSession.PROTO_DATAGRAM_RAW, _port, r.port);
+                    if (_log.shouldDebug())
+                        _log.debug("sent deferred reply to " + _hash.toBase32());
+                } catch (I2PSessionException ise) {
+                    if (_log.shouldWarn())
+                        _log.warn("error sending deferred reply", ise);
+                }
+            }
+        }
+    }
+
+/****
+    // A local stand-in for the session, with a slow lookup.
+    // Ten announces from each of 20 uncached destinations, and 30 from one more,
+    // should be 21 lookups and 216 replies sent, 14 dropped over MAX_PER_DEST,
+    // and 195 of 230, 84%, coalesced.
+    public static void main(String[] args) throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger sent = new AtomicInteger();
+        final Destination dest = new Destination();
+        I2PSession session = (I2PSession) java.lang.reflect.Proxy.newProxyInstance(
+            DestLookupService.class.getClassLoader(), new Class<?>[] { I2PSession.class },
+            (proxy, m, a) -> {
+                if (m.getName().equals("lookupDest")) {
+                    lookups.incrementAndGet();
+                    Thread.sleep(200);
+                    return dest;
+                }
+                if (m.getName().equals("sendMessage")) {
+                    sent.incrementAndGet();
+                    return Boolean.TRUE;
+                }
+                return null;
+            });
+        java.util.concurrent.ExecutorService ex = java.util.concurrent.Executors.newFixedThreadPool(25);
+        DestCache cache = new DestCache(DestCache.MIN_CAPACITY);
+        DestLookupService svc = new DestLookupService(ctx, ex, cache, 6969, 2000);
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 20; j++) {
+                byte[] h = new byte[32];
+                h[0] = (byte) j;
+                svc.send(session, new Hash(h), 6881, new byte[20]);
+            }
+        }
+        for (int i = 0; i < 30; i++) {
+            byte[] h = new byte[32];
+            h[0] = (byte) 20;
+            svc.send(session, new Hash(h), 6881, new byte[20]);
+        }
+        System.out.println("queue depth " + svc.getQueueDepth());
+        Thread.sleep(1000);
+        System.out.println(lookups + " lookups, " + sent + " sent, " + svc.getCoalescePercent() +
+                           "% coalesced, " + svc.getDropped() + " dropped, " + cache.size() + " cached, " +
+                           svc.getQueueDepth() + " left");
+        ex.shutdown();
+    }
+****/
+}
@@ -0,0 +1,201 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ *  Off-heap memory for DirectPeerStores, carved out of a few large
+ *  direct buffers (slabs) that are kept until the tracker stops.
+ *
+ *  Each direct buffer is only freed by the garbage collector, and when
+ *  -XX:MaxDirectMemorySize is reached, allocating another one forces a
+ *  full GC. So we don't allocate one per swarm and per resize.
+ *  Instead, blocks are power-of-2 sized, and freed blocks go on a free
+ *  list for their size. A block can be split in halves for a smaller
+ *  size, but free blocks are not merged.
+ *
+ *  The slabs are limited to the configured maximum. When that's used up,
+ *  or for a swarm too big for a slab, allocate() returns null and the
+ *  caller keeps the records on the heap.
+ *
+ *  All methods are synchronized, they're only called on resizes.
+ *
+ *  @since 0.20.0
+ */
+class DirectArena {
+
+    /** 4 MB */
+    private static final int SLAB_SHIFT = 22;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    /** 8 KB */
+    private static final int MIN_SHIFT = 13;
+    private static final int CLASSES = SLAB_SHIFT - MIN_SHIFT + 1;
+
+    private final ByteBuffer[] _slabs;
+    private int _slabCount;
+    /** in the last slab */
+    private int _top;
+    /** block handles, slab index << SLAB_SHIFT | offset, for each size class */
+    private final long[][] _free = new long[CLASSES][];
+    private final int[] _freeCount = new int[CLASSES];
+    private long _used;
+    private int _fallbacks;
+
+    /**
+     *  @param maxBytes total slab size, rounded down to a whole number of slabs, at least one
+     */
+    public DirectArena(long maxBytes) {
+        _slabs = new ByteBuffer[(int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes >> SLAB_SHIFT))];
+        _top = SLAB_SIZE;
+        for (int i = 0; i < CLASSES; i++) {
+            _free[i] = new long[16];
+        }
+    }
+
+    /**
+     *  @param capacity in records of recLen bytes
+     *  @return null if no room, or too big for a slab
+     */
+    public synchronized DirectPeerStore allocate(int capacity, int recLen) {
+        long bytes = (long) capacity * recLen;
+        if (bytes > SLAB_SIZE) {
+            _fallbacks++;
+            return null;
+        }
+        int cls = sizeClass((int) bytes);
+        long h = take(cls);
+        if (h < 0) {
+            _fallbacks++;
+            return null;
+        }
+        _used += blockSize(cls);
+        ByteBuffer buf = _slabs[(int) (h >>> SLAB_SHIFT)].duplicate();
+        int off = (int) (h & (SLAB_SIZE - 1));
+        // cast for Java 8, the ByteBuffer methods are covariant in Java 9+
+        ((Buffer) buf).limit(off + (int) bytes);
+        ((Buffer) buf).position(off);
+        return new DirectPeerStore(this, buf.slice(), h, cls, capacity);
+    }
+
+    /**
+     *  Return a block from allocate(). The store must not be used after this.
+     */
+    synchronized void release(long handle, int cls) {
+        push(cls, handle);
+        _used -= blockSize(cls);
+    }
+
+    /**
+     *  @return bytes in blocks given out
+     */
+    public synchronized long getUsed() {
+        return _used;
+    }
+
+    /**
+     *  @return bytes in slabs
+     */
+    public synchronized long getReserved() {
+        return (long) _slabCount << SLAB_SHIFT;
+    }
+
+    /**
+     *  Resets the count to zero.
+     *
+     *  @return allocations that went to the heap since the last call
+     */
+    public synchronized int getFallbacks() {
+        int rv = _fallbacks;
+        _fallbacks = 0;
+        return rv;
+    }
+
+    /**
+     *  From the free list, the current slab, a new slab,
+     *  or by splitting a larger free block, in that order.
+     *
+     *  @return handle or -1
+     */
+    private long take(int cls) {
+        if (_freeCount[cls] > 0)
+            return _free[cls][--_freeCount[cls]];
+        int size = blockSize(cls);
+        if (_top + size > SLAB_SIZE) {
+            // smaller blocks, or to split later if we're at the max
+            if (_slabCount > 0)
+                freeTail();
+            if (_slabCount < _slabs.length) {
+                _slabs[_slabCount++] = ByteBuffer.allocateDirect(SLAB_SIZE);
+                _top = 0;
+            }
+        }
+        if (_top + size <= SLAB_SIZE) {
+            long rv = ((long) (_slabCount - 1) << SLAB_SHIFT) | _top;
+            _top += size;
+            return rv;
+        }
+        for (int c = cls + 1; c < CLASSES; c++) {
+            if (_freeCount[c] > 0) {
+                long rv = _free[c][--_freeCount[c]];
+                // keep the first part, free the upper halves
+                while (c > cls) {
+                    c--;
+                    push(c, rv + blockSize(c));
+                }
+                return rv;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Put the rest of the last slab on the free lists,
+     *  in the largest blocks that fit.
+     */
+    private void freeTail() {
+        long base = (long) (_slabCount - 1) << SLAB_SHIFT;
+        for (int c = CLASSES - 1; c >= 0; c--) {
+            int size = blockSize(c);
+            while (_top + size <= SLAB_SIZE) {
+                push(c, base | _top);
+                _top += size;
+            }
+        }
+    }
+
+    private void push(int cls, long handle) {
+        long[] f = _free[cls];
+        if (_freeCount[cls] >= f.length) {
+            long[] nf = new long[f.length * 2];
+            System.arraycopy(f, 0, nf, 0, f.length);
+            _free[cls] = f = nf;
+        }
+        f[_freeCount[cls]++] = handle;
+    }
+
+    /**
+     *  @param bytes 1 to SLAB_SIZE
+     */
+    private static int sizeClass(int bytes) {
+        int shift = 32 - Integer.numberOfLeadingZeros(bytes - 1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static int blockSize(int cls) {
+        return 1 << (cls + MIN_SHIFT);
+    }
+}
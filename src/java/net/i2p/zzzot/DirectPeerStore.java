@@ -0,0 +1,177 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Peer records in a block of a DirectArena, outside the Java heap.
+ *  The block goes back to the arena on release().
+ *
+ *  Record layout, 72 bytes:
+ *<pre>
+ *   0  peer ID (20)
+ *  20  destination hash (32)
+ *  52  last seen (8)
+ *  60  previous record (4)
+ *  64  next record (4)
+ *  68  unused (4)
+ *</pre>
+ *
+ *  @since 0.20.0
+ */
+class DirectPeerStore extends PeerStore {
+
+    private static final int REC_LEN = 72;
+    private static final int HASH_OFF = ID_LEN;
+    private static final int SEEN_OFF = HASH_OFF + HASH_LEN;
+    private static final int PREV_OFF = SEEN_OFF + 8;
+    private static final int NEXT_OFF = PREV_OFF + 4;
+
+    private final DirectArena _arena;
+    private final ByteBuffer _buf;
+    private final long _handle;
+    private final int _sizeClass;
+    private final int _capacity;
+    private boolean _released;
+
+    /**
+     *  Use create()
+     *
+     *  @param buf at least capacity * REC_LEN bytes, starting at 0
+     */
+    DirectPeerStore(DirectArena arena, ByteBuffer buf, long handle, int sizeClass, int capacity) {
+        _arena = arena;
+        _buf = buf;
+        _handle = handle;
+        _sizeClass = sizeClass;
+        _capacity = capacity;
+    }
+
+    /**
+     *  @return null if the arena is full or the capacity is too big
+     */
+    static DirectPeerStore create(DirectArena arena, int capacity) {
+        return arena.allocate(capacity, REC_LEN);
+    }
+
+    int capacity() {
+        return _capacity;
+    }
+
+    boolean isDirect() {
+        return true;
+    }
+
+    @Override
+    void release() {
+        if (!_released) {
+            _released = true;
+            _arena.release(_handle, _sizeClass);
+        }
+    }
+
+    void set(int r, byte[] id, int idOff, byte[] hash, int hashOff, long seen) {
+        int base = r * REC_LEN;
+        for (int i = 0; i < ID_LEN; i++) {
+            _buf.put(base + i, id[idOff + i]);
+        }
+        base += HASH_OFF;
+        for (int i = 0; i < HASH_LEN; i++) {
+            _buf.put(base + i, hash[hashOff + i]);
+        }
+        setSeen(r, seen);
+    }
+
+    void setSeen(int r, long seen) {
+        _buf.putLong((r * REC_LEN) + SEEN_OFF, seen);
+    }
+
+    boolean idEquals(int r, byte[] id, int off) {
+        int base = r * REC_LEN;
+        for (int i = 0; i < ID_LEN; i++) {
+            if (_buf.get(base + i) != id[off + i])
+                return false;
+        }
+        return true;
+    }
+
+    void getID(int r, byte[] buf, int off) {
+        int base = r * REC_LEN;
+        for (int i = 0; i < ID_LEN; i++) {
+            buf[off + i] = _buf.get(base + i);
+        }
+    }
+
+    void getHash(int r, byte[] buf, int off) {
+        int base = (r * REC_LEN) + HASH_OFF;
+        for (int i = 0; i < HASH_LEN; i++) {
+            buf[off + i] = _buf.get(base + i);
+        }
+    }
+
+    long getSeen(int r) {
+        return _buf.getLong((r * REC_LEN) + SEEN_OFF);
+    }
+
+    int getPrev(int r) {
+        return _buf.getInt((r * REC_LEN) + PREV_OFF);
+    }
+
+    int getNext(int r) {
+        return _buf.getInt((r * REC_LEN) + NEXT_OFF);
+    }
+
+    void setPrev(int r, int prev) {
+        _buf.putInt((r * REC_LEN) + PREV_OFF, prev);
+    }
+
+    void setNext(int r, int next) {
+        _buf.putInt((r * REC_LEN) + NEXT_OFF, next);
+    }
+
+    void move(int from, int to) {
+        int src = from * REC_LEN;
+        int dst = to * REC_LEN;
+        for (int i = 0; i < REC_LEN; i += 8) {
+            _buf.putLong(dst + i, _buf.getLong(src + i));
+        }
+    }
+
+    void swap(int a, int b) {
+        a *= REC_LEN;
+        b *= REC_LEN;
+        for (int i = 0; i < REC_LEN; i += 8) {
+            long tmp = _buf.getLong(a + i);
+            _buf.putLong(a + i, _buf.getLong(b + i));
+            _buf.putLong(b + i, tmp);
+        }
+    }
+
+    @Override
+    void copyTo(PeerStore to, int count) {
+        if (to instanceof DirectPeerStore) {
+            // not ByteBuffer.put(ByteBuffer), the position/limit methods
+            // are covariant in Java 9+ and would break on Java 8
+            ByteBuffer dst = ((DirectPeerStore) to)._buf;
+            int len = count * REC_LEN;
+            for (int i = 0; i < len; i += 8) {
+                dst.putLong(i, _buf.getLong(i));
+            }
+        } else {
+            super.copyTo(to, count);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *  A hashed timing wheel of swarms, bucketed by the expiry time
+ *  of their oldest peer.
+ *
+ *  Each Peers keeps its peers in last seen order, so only the
+ *  oldest one matters, and it can only get younger. A swarm is
+ *  in at most one bucket. When its bucket comes due, the cleaner
+ *  expires the peers that are actually due, and the swarm reschedules
+ *  itself for its new oldest peer. A re-announce just moves the peer
+ *  to the end of its swarm's list, and never touches the wheel.
+ *
+ *  So a cleaner pass touches only the due swarms and the due peers,
+ *  not every peer of every torrent.
+ *
+ *  A swarm that is visited early, because its oldest peer
+ *  re-announced or left, is simply rescheduled.
+ *
+ *  @since 0.20.0
+ */
+class ExpiryWheel {
+
+    static final long TICK = 60*1000;
+    private final long _expireTime;
+    private final Queue<Peers>[] _buckets;
+    /** the last tick processed */
+    private volatile long _current;
+
+    /**
+     *  @param expireTime how long after last seen a peer expires, in ms
+     */
+    @SuppressWarnings("unchecked")
+    public ExpiryWheel(long expireTime) {
+        _expireTime = expireTime;
+        // enough for any expiry time plus the cleaner's lag
+        int n = (int) (expireTime / TICK) + 4;
+        _buckets = (Queue<Peers>[]) new Queue[n];
+        for (int i = 0; i < n; i++) {
+            _buckets[i] = new ConcurrentLinkedQueue<Peers>();
+        }
+        _current = System.currentTimeMillis() / TICK;
+    }
+
+    /**
+     *  In ms
+     */
+    public long getExpireTime() {
+        return _expireTime;
+    }
+
+    /**
+     *  Called by Peers, with its lock held, when it has no bucket.
+     *  If this races with advance(), the swarm may wait
+     *  one more turn of the wheel.
+     *
+     *  @param lastSeen of the oldest peer
+     *  @return the tick scheduled, nonzero
+     */
+    long schedule(Peers p, long lastSeen) {
+        long tick = (lastSeen + _expireTime + TICK - 1) / TICK;
+        long cur = _current;
+        if (tick <= cur)
+            tick = cur + 1;
+        _buckets[(int) (tick % _buckets.length)].offer(p);
+        return tick;
+    }
+
+    /**
+     *  Remove and return the swarms in all the buckets due up to now.
+     *  Only one thread may call this at a time.
+     *
+     *  @return non-null
+     */
+    public List<Peers> advance(long now) {
+        List<Peers> rv = new ArrayList<Peers>();
+        long target = now / TICK;
+        long cur = _current;
+        // after a long sleep, every bucket once
+        if (target - cur > _buckets.length)
+            cur = target - _buckets.length;
+        // before draining, so new entries go after target
+        _current = target;
+        for (long t = cur + 1; t <= target; t++) {
+            Queue<Peers> q = _buckets[(int) (t % _buckets.length)];
+            Peers p;
+            while ((p = q.poll()) != null) {
+                rv.add(p);
+            }
+        }
+        return rv;
+    }
+
+    public void clear() {
+        for (int i = 0; i < _buckets.length; i++) {
+            _buckets[i].clear();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *  The full scrape, bencoded once and served to everybody
+ *  until it is too old, along with a gzipped copy,
+ *  with ETag and Last-Modified for conditional GETs.
+ *
+ *  If it is too old, the first request rebuilds it, and any
+ *  requests that arrive during the rebuild wait for that one.
+ *  While it is being requested, the cleaner also rebuilds it
+ *  every pass, so requests usually don't wait at all.
+ *
+ *  Sending it can still take a while, so there is a limit on
+ *  concurrent transfers, and a minimum interval per requestor.
+ *  Over the limits, the request gets a short failure reply.
+ *  Conditional GETs that get a 304 are not limited.
+ *
+ *  @since 0.20.0
+ */
+public class FullScrape {
+
+    private final Torrents _torrents;
+    private final long _maxAge;
+    private volatile Scrape _current;
+    /** guarded by this */
+    private CompletableFuture<Scrape> _building;
+    /** since the last refresh() */
+    private volatile boolean _requested;
+    private final long _minInterval;
+    private final Semaphore _transfers;
+    /** X-I2P-DestHash to time of last full reply */
+    private final ConcurrentHashMap<String, Long> _lastServed = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong _lastPurge = new AtomicLong();
+
+    private static final String GZIP_SUFFIX = "-gz";
+    private static final int MAX_REQUESTORS = 4096;
+    private static final long MIN_PURGE_INTERVAL = 1000;
+    private static final String BUSY = "busy, try again later";
+
+    /**
+     *  @param maxAge rebuild when a request finds it older than this, in ms
+     *  @param minInterval per requestor, in ms, 0 for none
+     *  @param maxTransfers max concurrent replies, not including 304s
+     */
+    public FullScrape(Torrents torrents, long maxAge, long minInterval, int maxTransfers) {
+        _torrents = torrents;
+        _maxAge = maxAge;
+        _minInterval = minInterval;
+        _transfers = new Semaphore(maxTransfers);
+    }
+
+    /**
+     *  Send it, or 304 Not Modified, or a failure if over the limits.
+     *  Sets the ETag, Last-Modified, and Content-Encoding headers.
+     */
+    public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Scrape s = get();
+        String ae = request.getHeader("Accept-Encoding");
+        boolean gzip = ae != null && ae.contains("gzip");
+        String etag = gzip ? s.etag + GZIP_SUFFIX : s.etag;
+        if (notModified(request, etag, s.time)) {
+            setCacheHeaders(response, etag, s.time);
+            response.setStatus(304);
+            return;
+        }
+        // get the permit first, so being busy doesn't count against their interval
+        if (!_transfers.tryAcquire()) {
+            ScrapeWriter.writeFailure(response.getOutputStream(), BUSY);
+            return;
+        }
+        try {
+            String who = request.getHeader("X-I2P-DestHash");
+            String fail = who != null ? checkInterval(who) : null;
+            if (fail != null) {
+                ScrapeWriter.writeFailure(response.getOutputStream(), fail);
+                return;
+            }
+            setCacheHeaders(response, etag, s.time);
+            byte[] data;
+            if (gzip) {
+                response.setHeader("Content-Encoding", "gzip");
+                data = s.gzipped;
+            } else {
+                data = s.data;
+            }
+            response.setContentLength(data.length);
+            OutputStream out = response.getOutputStream();
+            out.write(data);
+            out.flush();
+        } finally {
+            _transfers.release();
+        }
+    }
+
+    private static void setCacheHeaders(HttpServletResponse response, String etag, long time) {
+        response.setHeader("ETag", '"' + etag + '"');
+        response.setDateHeader("Last-Modified", time);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    /**
+     *  Lock-free. If there are too many requestors to track, the expired
+     *  ones are removed, at most once a second, and if that doesn't make
+     *  room, the new requestor is refused.
+     *
+     *  @return null if the requestor may have it now, and record the time,
+     *          or the failure reason
+     */
+    private String checkInterval(String who) {
+        if (_minInterval <= 0)
+            return null;
+        long now = System.currentTimeMillis();
+        Long prev = _lastServed.get(who);
+        if (prev != null) {
+            // or lost the race to another request from them
+            if (now - prev.longValue() < _minInterval ||
+                !_lastServed.replace(who, prev, Long.valueOf(now)))
+                return "full scrape interval is " + (_minInterval / 1000) + " seconds";
+            return null;
+        }
+        if (_lastServed.size() >= MAX_REQUESTORS && !purge(now))
+            return BUSY;
+        if (_lastServed.putIfAbsent(who, Long.valueOf(now)) != null)
+            return "full scrape interval is " + (_minInterval / 1000) + " seconds";
+        return null;
+    }
+
+    /**
+     *  Remove the expired requestors, if not done in the last second.
+     *
+     *  @return true if there's room for a new one
+     */
+    private boolean purge(long now) {
+        long l = _lastPurge.get();
+        if (now - l >= MIN_PURGE_INTERVAL && _lastPurge.compareAndSet(l, now))
+            _lastServed.values().removeIf(t -> now - t.longValue() >= _minInterval);
+        return _lastServed.size() < MAX_REQUESTORS;
+    }
+
+    /**
+     *  If-None-Match wins over If-Modified-Since, as in RFC 7232
+     */
+    private static boolean notModified(HttpServletRequest request, String etag, long time) {
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null)
+            return inm.equals("*") || inm.contains('"' + etag + '"');
+        try {
+            long ims = request.getDateHeader("If-Modified-Since");
+            // one-second resolution
+            return ims >= 0 && ims >= (time / 1000) * 1000;
+        } catch (IllegalArgumentException iae) {
+            return false;
+        }
+    }
+
+    /**
+     *  The current one, or wait for a rebuild if too old
+     */
+    private Scrape get() {
+        _requested = true;
+        Scrape rv = _current;
+        if (rv != null && System.currentTimeMillis() - rv.time < _maxAge)
+            return rv;
+        try {
+            return build().join();
+        } catch (CompletionException ce) {
+            // shouldn't happen, serve the old one if we have it
+            if (rv != null)
+                return rv;
+            throw ce;
+        }
+    }
+
+    /**
+     *  Called by the cleaner.
+     *  Rebuild, only if it was requested since the last call.
+     */
+    void refresh() {
+        if (!_lastServed.isEmpty()) {
+            long now = System.currentTimeMillis();
+            _lastServed.values().removeIf(t -> now - t.longValue() >= _minInterval);
+        }
+        if (!_requested)
+            return;
+        _requested = false;
+        build();
+    }
+
+    /**
+     *  Build it on this thread, or wait for the one in progress
+     */
+    private CompletableFuture<Scrape> build() {
+        CompletableFuture<Scrape> rv;
+        synchronized(this) {
+            if (_building != null)
+                return _building;
+            rv = new CompletableFuture<Scrape>();
+            _building = rv;
+        }
+        try {
+            Scrape s = encode();
+            _current = s;
+            rv.complete(s);
+        } catch (Throwable t) {
+            rv.completeExceptionally(t);
+        } finally {
+            synchronized(this) {
+                _building = null;
+            }
+        }
+        return rv;
+    }
+
+    /**
+     *  Stream it through ScrapeWriter to the plain and gzipped buffers
+     *  at the same time, so there's no intermediate copy to compress.
+     */
+    private Scrape encode() throws IOException {
+        int est = 64 + (_torrents.size() * 80);
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream(est);
+        ByteArrayOutputStream gzbuf = new ByteArrayOutputStream(est / 2);
+        final GZIPOutputStream gz = new GZIPOutputStream(gzbuf);
+        OutputStream tee = new OutputStream() {
+            public void write(int b) throws IOException {
+                raw.write(b);
+                gz.write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                raw.write(b, off, len);
+                gz.write(b, off, len);
+            }
+        };
+        OutputStream out = new BufferedOutputStream(tee, 16*1024);
+        ScrapeWriter.writeAll(_torrents, out);
+        out.flush();
+        gz.close();
+        return new Scrape(raw.toByteArray(), gzbuf.toByteArray());
+    }
+
+    void clear() {
+        _current = null;
+        _lastServed.clear();
+    }
+
+    /**
+     *  Immutable
+     */
+    private static class Scrape {
+        final byte[] data;
+        final byte[] gzipped;
+        final long time;
+        final String etag;
+
+        public Scrape(byte[] d, byte[] gz) {
+            data = d;
+            gzipped = gz;
+            time = System.currentTimeMillis();
+            etag = Long.toString(time, 36);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  Peer records in primitive arrays on the Java heap.
+ *
+ *  @since 0.20.0
+ */
+class HeapPeerStore extends PeerStore {
+
+    private final byte[] _ids;
+    private final byte[] _hashes;
+    private final long[] _seen;
+    private final int[] _prev;
+    private final int[] _next;
+
+    public HeapPeerStore(int capacity) {
+        _ids = new byte[capacity * ID_LEN];
+        _hashes = new byte[capacity * HASH_LEN];
+        _seen = new long[capacity];
+        _prev = new int[capacity];
+        _next = new int[capacity];
+    }
+
+    int capacity() {
+        return _seen.length;
+    }
+
+    boolean isDirect() {
+        return false;
+    }
+
+    void set(int r, byte[] id, int idOff, byte[] hash, int hashOff, long seen) {
+        System.arraycopy(id, idOff, _ids, r * ID_LEN, ID_LEN);
+        System.arraycopy(hash, hashOff, _hashes, r * HASH_LEN, HASH_LEN);
+        _seen[r] = seen;
+    }
+
+    void setSeen(int r, long seen) {
+        _seen[r] = seen;
+    }
+
+    boolean idEquals(int r, byte[] id, int off) {
+        return DataHelper.eq(_ids, r * ID_LEN, id, off, ID_LEN);
+    }
+
+    void getID(int r, byte[] buf, int off) {
+        System.arraycopy(_ids, r * ID_LEN, buf, off, ID_LEN);
+    }
+
+    void getHash(int r, byte[] buf, int off) {
+        System.arraycopy(_hashes, r * HASH_LEN, buf, off, HASH_LEN);
+    }
+
+    long getSeen(int r) {
+        return _seen[r];
+    }
+
+    int getPrev(int r) {
+        return _prev[r];
+    }
+
+    int getNext(int r) {
+        return _next[r];
+    }
+
+    void setPrev(int r, int prev) {
+        _prev[r] = prev;
+    }
+
+    void setNext(int r, int next) {
+        _next[r] = next;
+    }
+
+    void move(int from, int to) {
+        System.arraycopy(_ids, from * ID_LEN, _ids, to * ID_LEN, ID_LEN);
+        System.arraycopy(_hashes, from * HASH_LEN, _hashes, to * HASH_LEN, HASH_LEN);
+        _seen[to] = _seen[from];
+        _prev[to] = _prev[from];
+        _next[to] = _next[from];
+    }
+
+    void swap(int a, int b) {
+        swap(_ids, a * ID_LEN, b * ID_LEN, ID_LEN);
+        swap(_hashes, a * HASH_LEN, b * HASH_LEN, HASH_LEN);
+        long tmp = _seen[a];
+        _seen[a] = _seen[b];
+        _seen[b] = tmp;
+        int t = _prev[a];
+        _prev[a] = _prev[b];
+        _prev[b] = t;
+        t = _next[a];
+        _next[a] = _next[b];
+        _next[b] = t;
+    }
+
+    private static void swap(byte[] buf, int a, int b, int len) {
+        for (int i = 0; i < len; i++) {
+            byte tmp = buf[a + i];
+            buf[a + i] = buf[b + i];
+            buf[b + i] = tmp;
+        }
+    }
+
+    @Override
+    void copyTo(PeerStore to, int count) {
+        if (to instanceof HeapPeerStore) {
+            HeapPeerStore h = (HeapPeerStore) to;
+            System.arraycopy(_ids, 0, h._ids, 0, count * ID_LEN);
+            System.arraycopy(_hashes, 0, h._hashes, 0, count * HASH_LEN);
+            System.arraycopy(_seen, 0, h._seen, 0, count);
+            System.arraycopy(_prev, 0, h._prev, 0, count);
+            System.arraycopy(_next, 0, h._next, 0, count);
+        } else {
+            super.copyTo(to, count);
+        }
+    }
+}
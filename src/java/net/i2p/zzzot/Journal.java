@@ -0,0 +1,460 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  An append-only journal of swarm changes since the last snapshot,
+ *  so a crash loses at most the last batch.
+ *
+ *  Announce threads only queue a small record, with the swarm lock held,
+ *  so the journal order for a swarm is the order of its changes.
+ *  A writer thread drains the queue in batches, and writes and syncs
+ *  each batch with one sequential write (group commit).
+ *  If the queue is full, records are dropped, never blocking announces.
+ *
+ *  Expiration is not journaled, replay drops peers by their last seen time.
+ *
+ *  The journal is a series of files, journal-n.dat. The snapshot is the
+ *  base image. Compaction, in Snapshot.write(), rotates to a new file,
+ *  writes the snapshot, then deletes the old files, which the snapshot
+ *  includes. Recovery loads the snapshot, then replays the journal files
+ *  in order. Replay is idempotent, a record is applied only if newer
+ *  than the peer's last seen time, so records in both the snapshot
+ *  and the journal, and a torn record at the end of a file, are harmless.
+ *
+ *  Record formats:
+ *<pre>
+ *  put:  1, infohash (20), peer ID (20), destination hash (32), last seen (8), seed flag (1)
+ *  stop: 2, infohash (20), peer ID (20), time (8)
+ *</pre>
+ *
+ *  @since 0.20.0
+ */
+class Journal implements Runnable {
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final File _dir;
+    private final BlockingQueue<byte[]> _queue;
+    private final AtomicInteger _dropped = new AtomicInteger();
+    /** protects _fos, _out, and _seq */
+    private final Object _fileLock = new Object();
+    private FileOutputStream _fos;
+    private OutputStream _out;
+    private long _seq;
+    /** files before this are replayed at startup */
+    private long _firstSeq;
+    /** not final, 1 to benchmark without group commit */
+    private int _maxBatch = MAX_BATCH;
+    private volatile boolean _running;
+    private Thread _thread;
+
+    private static final int PUT = 1;
+    private static final int STOP = 2;
+    private static final int PUT_LEN = 1 + InfoHash.LENGTH + Peers.RECORD_LEN;
+    private static final int STOP_LEN = 1 + InfoHash.LENGTH + PID.LENGTH + 8;
+    private static final int MAX_QUEUE = 64*1024;
+    private static final int MAX_BATCH = 4096;
+    private static final int BUFSIZE = 64*1024;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".dat";
+
+    /**
+     *  @param dir where to put the journal files
+     */
+    public Journal(I2PAppContext ctx, File dir) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(Journal.class);
+        _dir = dir;
+        _queue = new LinkedBlockingQueue<byte[]>(MAX_QUEUE);
+    }
+
+    /**
+     *  Open a new file after any existing ones,
+     *  which are left for replay(), and start the writer.
+     */
+    public synchronized void start() {
+        long max = 0;
+        for (File f : listFiles()) {
+            max = Math.max(max, seqOf(f));
+        }
+        synchronized(_fileLock) {
+            _seq = max;
+            _firstSeq = max + 1;
+            try {
+                open(max + 1);
+            } catch (IOException ioe) {
+                _log.error("Cannot open journal in " + _dir + ", journal disabled", ioe);
+                return;
+            }
+        }
+        _running = true;
+        _thread = new I2PAppThread(this, "ZzzOT journal", true);
+        _thread.start();
+    }
+
+    /**
+     *  Write out everything queued, and close.
+     */
+    public synchronized void stop() {
+        if (!_running)
+            return;
+        _running = false;
+        if (_thread != null) {
+            try {
+                _thread.join(10*1000);
+            } catch (InterruptedException ie) {}
+        }
+        synchronized(_fileLock) {
+            close();
+        }
+    }
+
+    /**
+     *  Queue a put, non-blocking
+     *
+     *  @param rec Peers.RECORD_LEN bytes
+     */
+    public void logPut(InfoHash ih, byte[] rec) {
+        if (!_running)
+            return;
+        byte[] e = new byte[PUT_LEN];
+        e[0] = PUT;
+        System.arraycopy(ih.getData(), 0, e, 1, InfoHash.LENGTH);
+        System.arraycopy(rec, 0, e, 1 + InfoHash.LENGTH, Peers.RECORD_LEN);
+        offer(e);
+    }
+
+    /**
+     *  Queue a stop, non-blocking
+     *
+     *  @param id PID.LENGTH bytes at off
+     */
+    public void logStop(InfoHash ih, byte[] id, int off, long time) {
+        if (!_running)
+            return;
+        byte[] e = new byte[STOP_LEN];
+        e[0] = STOP;
+        System.arraycopy(ih.getData(), 0, e, 1, InfoHash.LENGTH);
+        System.arraycopy(id, off, e, 1 + InfoHash.LENGTH, PID.LENGTH);
+        DataHelper.toLong(e, 1 + InfoHash.LENGTH + PID.LENGTH, 8, time);
+        offer(e);
+    }
+
+    private void offer(byte[] e) {
+        if (!_queue.offer(e)) {
+            if (_dropped.incrementAndGet() == 1 && _log.shouldWarn())
+                _log.warn("Journal queue full, dropping records until the next compaction");
+        }
+    }
+
+    /**
+     *  The writer
+     */
+    public void run() {
+        List<byte[]> batch = new ArrayList<byte[]>(MAX_BATCH);
+        while (true) {
+            byte[] e;
+            try {
+                e = _queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                e = null;
+            }
+            if (e == null) {
+                if (!_running)
+                    break;
+                continue;
+            }
+            batch.add(e);
+            _queue.drainTo(batch, _maxBatch - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     *  One write and one sync for the whole batch
+     */
+    private void write(List<byte[]> batch) {
+        synchronized(_fileLock) {
+            if (_out == null)
+                return;
+            try {
+                for (byte[] e : batch) {
+                    _out.write(e);
+                }
+                _out.flush();
+                _fos.getChannel().force(false);
+            } catch (IOException ioe) {
+                if (_log.shouldWarn())
+                    _log.warn("Journal write failed", ioe);
+            }
+        }
+    }
+
+    /**
+     *  Start a new file. The returned file and those before it
+     *  may be deleted once a snapshot started after this call is written.
+     *
+     *  @return the last sequence number to delete after the snapshot
+     */
+    public long rotate() {
+        synchronized(_fileLock) {
+            long rv = _seq;
+            if (_out == null)
+                return rv;
+            close();
+            try {
+                open(rv + 1);
+            } catch (IOException ioe) {
+                _log.error("Cannot open journal in " + _dir, ioe);
+            }
+            _dropped.set(0);
+            return rv;
+        }
+    }
+
+    /**
+     *  Delete files up to and including seq
+     */
+    public void deleteUpTo(long seq) {
+        for (File f : listFiles()) {
+            if (seqOf(f) <= seq)
+                f.delete();
+        }
+    }
+
+    /**
+     *  Replay the files that were present at start(), oldest first,
+     *  after the snapshot is loaded.
+     *
+     *  @param cutoff ignore peers not seen since this
+     *  @return number of records applied
+     */
+    public int replay(Torrents torrents, long cutoff) {
+        int rv = 0;
+        long first;
+        synchronized(_fileLock) {
+            first = _firstSeq;
+        }
+        for (File f : listFiles()) {
+            if (seqOf(f) >= first)
+                continue;
+            rv += replay(f, torrents, cutoff);
+        }
+        return rv;
+    }
+
+    private int replay(File f, Torrents torrents, long cutoff) {
+        int rv = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFSIZE));
+            byte[] ih = new byte[InfoHash.LENGTH];
+            byte[] rec = new byte[Peers.RECORD_LEN];
+            byte[] id = new byte[PID.LENGTH];
+            int type;
+            while ((type = in.read()) >= 0) {
+                if (type == PUT) {
+                    in.readFully(ih);
+                    in.readFully(rec);
+                    long seen = DataHelper.fromLong(rec, PID.LENGTH + Hash.HASH_LENGTH, 8);
+                    if (seen < cutoff)
+                        continue;
+                    torrents.getOrCreate(new InfoHash(Arrays.copyOf(ih, ih.length))).restore(rec, 0);
+                } else if (type == STOP) {
+                    in.readFully(ih);
+                    in.readFully(id);
+                    long time = in.readLong();
+                    Peers p = torrents.get(new InfoHash(ih));
+                    if (p != null)
+                        p.restoreStop(id, 0, time);
+                } else {
+                    throw new IOException("bad record type " + type);
+                }
+                rv++;
+            }
+        } catch (EOFException eofe) {
+            // torn write at the end, expected after a crash
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed replaying journal " + f, ioe);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return rv;
+    }
+
+    /**
+     *  Caller must hold _fileLock
+     */
+    private void open(long seq) throws IOException {
+        _fos = new SecureFileOutputStream(new File(_dir, PREFIX + seq + SUFFIX));
+        _out = new BufferedOutputStream(_fos, BUFSIZE);
+        _seq = seq;
+    }
+
+    /**
+     *  Caller must hold _fileLock
+     */
+    private void close() {
+        if (_out == null)
+            return;
+        try {
+            _out.flush();
+            _fos.getChannel().force(false);
+        } catch (IOException ioe) {}
+        try {
+            _out.close();
+        } catch (IOException ioe) {}
+        _out = null;
+        _fos = null;
+    }
+
+    /**
+     *  @return sorted by sequence number
+     */
+    private List<File> listFiles() {
+        List<File> rv = new ArrayList<File>();
+        File[] files = _dir.listFiles();
+        if (files == null)
+            return rv;
+        for (File f : files) {
+            if (seqOf(f) > 0)
+                rv.add(f);
+        }
+        Collections.sort(rv, new Comparator<File>() {
+            public int compare(File l, File r) {
+                return Long.compare(seqOf(l), seqOf(r));
+            }
+        });
+        return rv;
+    }
+
+    /**
+     *  @return sequence number, or 0 if not a journal file
+     */
+    private static long seqOf(File f) {
+        String name = f.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+            return 0;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+/****
+    // announce throughput with no journal, with group commit, and with a sync per record
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "zzzot-journal-test");
+        dir.mkdirs();
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        int threads = 8;
+        int n = 200000;
+        String[] names = { "no journal:   ", "group commit: ", "no grouping:  " };
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < 3; j++) {
+                final Journal journal = j == 0 ? null : new Journal(ctx, dir);
+                if (journal != null) {
+                    if (j == 2)
+                        journal._maxBatch = 1;
+                    journal.start();
+                }
+                Torrents torrents = new Torrents(1620, 1200, 2430*1000L, 0, Peers.DEFAULT_SEED_PERCENT, 16, journal);
+                long start = System.nanoTime();
+                long rate = bench(torrents, threads, n);
+                long written = 0;
+                if (journal != null) {
+                    journal.stop();
+                    long time = System.nanoTime() - start;
+                    // stop() waits for the queue to be written
+                    long bytes = 0;
+                    for (File f : journal.listFiles()) {
+                        bytes += f.length();
+                    }
+                    written = bytes / PUT_LEN * 1000000000L / time;
+                    journal.deleteUpTo(Long.MAX_VALUE);
+                }
+                System.out.println(names[j] + rate + " announces/sec" +
+                                   (journal == null ? "" : ", " + written + " records/sec written, dropped " + journal._dropped.get()));
+            }
+        }
+    }
+
+    private static long bench(final Torrents torrents, int threads, final int n) throws Exception {
+        final java.util.Random rand = new java.util.Random();
+        final InfoHash[] ihs = new InfoHash[1000];
+        for (int i = 0; i < ihs.length; i++) {
+            byte[] b = new byte[InfoHash.LENGTH];
+            rand.nextBytes(b);
+            ihs[i] = new InfoHash(b);
+        }
+        Thread[] t = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    java.util.Random r = new java.util.Random();
+                    for (int k = 0; k < n; k++) {
+                        InfoHash ih = ihs[r.nextInt(ihs.length)];
+                        byte[] id = new byte[PID.LENGTH];
+                        r.nextBytes(id);
+                        byte[] h = new byte[32];
+                        r.nextBytes(h);
+                        Peers p = torrents.getOrCreate(ih);
+                        Peer peer = new Peer(id, new net.i2p.data.Hash(h));
+                        p.putIfAbsent(new PID(id), peer);
+                        peer.setLeft(r.nextInt(2));
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            t[i].join();
+        }
+        long time = System.nanoTime() - start;
+        return threads * (long) n * 1000000000L / time;
+    }
+****/
+}
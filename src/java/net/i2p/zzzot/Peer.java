@@ -16,6 +16,8 @@ package net.i2p.zzzot;
  *
  */
 
+import java.util.Arrays;
+
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 
@@ -24,28 +26,52 @@ import net.i2p.data.Hash;
  *  Save a couple stats. We no longer support non-compact
  *  announces, so this is no longer a Map that can be BEncoded.
  *  See announce.jsp.
+ *
+ *  As of 0.20.0, peers are stored inline in the Peers table,
+ *  and this is only a temporary view of a table entry,
+ *  or a new entry to be added with Peers.putIfAbsent().
+ *  Changes made with setLeft() are written through to the table.
  */
 public class Peer {
 
-    private final Hash hash;
+    private final byte[] id;
+    private final byte[] hash;
     private long lastSeen;
     private long bytesLeft;
-    private static final Integer PORT = Integer.valueOf(6881);
+    /** the table we are in, or null if not yet added */
+    private Peers peers;
 
     public Peer(byte[] id, Destination address) {
-        hash = address.calculateHash();
+        this(id, address.calculateHash());
     }
 
     /**
      *  @since 0.20.0
      */
     public Peer(byte[] id, Hash h) {
-        hash = h;
+        this.id = id;
+        hash = h.getData();
+    }
+
+    /**
+     *  A view of an existing table entry
+     *
+     *  @since 0.20.0
+     */
+    Peer(Peers p, byte[] id, byte[] hash, long seen, boolean seed) {
+        this.id = id;
+        this.hash = hash;
+        lastSeen = seen;
+        bytesLeft = seed ? 0 : 1;
+        peers = p;
     }
 
     public void setLeft(long l) {
         bytesLeft = l;
         lastSeen = System.currentTimeMillis();
+        Peers p = peers;
+        if (p != null)
+            p.update(id, l <= 0, lastSeen);
     }
 
     public boolean isSeed() {
@@ -60,6 +86,44 @@ public class Peer {
      *  @since 0.20
      */
     public byte[] getHashBytes() {
-        return hash.getData();
+        return hash;
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    byte[] getIDBytes() {
+        return id;
+    }
+
+    /**
+     *  Called by Peers when added to the table
+     *
+     *  @since 0.20.0
+     */
+    void setPeers(Peers p) {
+        peers = p;
+    }
+
+    /**
+     *  Equal if the peer IDs are equal
+     *
+     *  @since 0.20.0
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof Peer))
+            return false;
+        return Arrays.equals(id, ((Peer) o).id);
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(id);
     }
 }
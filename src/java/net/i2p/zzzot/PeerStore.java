@@ -0,0 +1,101 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import net.i2p.data.Hash;
+
+/**
+ *  Fixed-capacity record storage for a Peers table.
+ *  Each record is a peer ID, a destination hash, a last seen time,
+ *  and the previous and next record numbers in the expiry list.
+ *  Seeds are partitioned by record number in Peers, so there
+ *  is no seed flag here. Records are addressed by number,
+ *  0 to capacity() - 1. Not thread safe, Peers does the locking.
+ *
+ *  @since 0.20.0
+ */
+abstract class PeerStore {
+
+    static final int ID_LEN = PID.LENGTH;
+    static final int HASH_LEN = Hash.HASH_LENGTH;
+
+    /**
+     *  @param arena store the records there, outside the Java heap, or null
+     *  @return on the heap if arena is null or full
+     */
+    static PeerStore create(int capacity, DirectArena arena) {
+        if (arena != null) {
+            PeerStore rv = DirectPeerStore.create(arena, capacity);
+            if (rv != null)
+                return rv;
+        }
+        return new HeapPeerStore(capacity);
+    }
+
+    abstract int capacity();
+
+    abstract boolean isDirect();
+
+    /**
+     *  Done with it, give back any off-heap memory.
+     *  Must not be used after this.
+     */
+    void release() {}
+
+    abstract void set(int r, byte[] id, int idOff, byte[] hash, int hashOff, long seen);
+
+    abstract void setSeen(int r, long seen);
+
+    abstract boolean idEquals(int r, byte[] id, int off);
+
+    abstract void getID(int r, byte[] buf, int off);
+
+    abstract void getHash(int r, byte[] buf, int off);
+
+    abstract long getSeen(int r);
+
+    abstract int getPrev(int r);
+
+    abstract int getNext(int r);
+
+    abstract void setPrev(int r, int prev);
+
+    abstract void setNext(int r, int next);
+
+    /**
+     *  Copy record from to record to
+     */
+    abstract void move(int from, int to);
+
+    /**
+     *  Exchange records a and b
+     */
+    abstract void swap(int a, int b);
+
+    /**
+     *  Copy records 0 to count - 1 into another store
+     */
+    void copyTo(PeerStore to, int count) {
+        byte[] id = new byte[ID_LEN];
+        byte[] hash = new byte[HASH_LEN];
+        for (int r = 0; r < count; r++) {
+            getID(r, id, 0);
+            getHash(r, hash, 0);
+            to.set(r, id, 0, hash, 0, getSeen(r));
+            to.setPrev(r, getPrev(r));
+            to.setNext(r, getNext(r));
+        }
+    }
+}
@@ -16,27 +16,1067 @@ package net.i2p.zzzot;
  *
  */
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.RandomSource;
 
 /**
  *  All the peers for a single torrent
+ *
+ *  Before 0.20.0, this was a ConcurrentHashMap of PID to Peer,
+ *  which cost a map node, a PID, a Peer, and a Hash, plus
+ *  two byte arrays, for every peer.
+ *
+ *  As of 0.20.0, the peers are stored as dense records in a PeerStore:
+ *  the raw 20-byte peer ID, the 32-byte destination hash,
+ *  and the last seen time, with an open-addressed
+ *  int index (linear probing) keyed by the peer ID.
+ *  There are no objects per peer. The Peers returned by get() and
+ *  the iterator are temporary views.
+ *
+ *  If off-heap storage is enabled, the records of all but the smallest
+ *  swarms are kept in direct buffers, and only the index,
+ *  4 bytes per slot with no references, remains on the heap.
+ *
+ *  Retained heap, 64-bit JVM with compressed oops,
+ *  as measured with the test code below:
+ *<pre>
+ *      peers    ConcurrentHashMap    Peers
+ *     10,000          1.9 MB         0.9 MB
+ *    100,000         19.3 MB        10.0 MB
+ *  1,000,000        191   MB        78   MB
+ *</pre>
+ *
+ *  The records are partitioned, seeds first, then leechers.
+ *  The seed count is the partition boundary, and is maintained
+ *  as peers are added, removed, or expired, or change state with
+ *  Peer.setLeft(), so the counts are O(1), and a random selection
+ *  of only seeds or only leechers needs no filtering.
+ *
+ *  The records are also on a doubly-linked list, oldest first,
+ *  through their previous and next record numbers. An announce moves
+ *  the peer to the end. Expiration removes from the front, and
+ *  stops at the first peer that is not due, see ExpiryWheel.
+ *
+ *  All methods are synchronized on this table. Announces to a single
+ *  torrent are rare enough that contention is not an issue.
  */
-public class Peers extends ConcurrentHashMap<PID, Peer> {
+public class Peers implements Iterable<Peer> {
+
+    private static final int ID_LEN = PID.LENGTH;
+    private static final int HASH_LEN = Hash.HASH_LENGTH;
+    /** power of 2 */
+    private static final int MIN_INDEX = 8;
+    private static final int MIN_CAPACITY = 4;
+    /** below this, a direct buffer costs more than it saves */
+    private static final int MIN_DIRECT_CAPACITY = 64;
+    /**
+     *  Leechers mostly want seeds, so bias toward them,
+     *  while still mixing in leechers to spread the pieces around.
+     */
+    static final int DEFAULT_SEED_PERCENT = 70;
+    /** index entries are the record number + 1 */
+    private static final int FREE = 0;
+    private static final int DELETED = -1;
+    /** end of the expiry list */
+    private static final int NIL = -1;
+    /** snapshot record, ID, hash, last seen, seed flag */
+    static final int RECORD_LEN = ID_LEN + HASH_LEN + 8 + 1;
+    /** for copyRandomHashes(), so announces don't allocate */
+    private static final ThreadLocal<int[]> _picked = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[64];
+        }
+    };
 
+    /** open-addressed, power of 2 length */
+    private int[] _index;
+    /** index entries not FREE */
+    private int _used;
+    private PeerStore _store;
+    /** records 0 to _size - 1 are in use */
+    private int _size;
+    /** records 0 to _seeds - 1 are seeds */
+    private int _seeds;
+    /** oldest and newest records */
+    private int _head = NIL;
+    private int _tail = NIL;
+    /** may be null */
+    private final InfoHash _ih;
+    /** may be null */
+    private final ExpiryWheel _wheel;
+    /** may be null */
+    private final Journal _journal;
+    /** the wheel tick we are scheduled for, or 0 if not scheduled */
+    private long _due;
+    /** null if on the heap */
+    private final DirectArena _arena;
+    private final int _seedPercent;
+    /** the global peer count, may be null */
+    private final LongAdder _total;
+    /** removed from Torrents, stop updating _total */
+    private boolean _closed;
+    /** for hashing stored IDs, use with lock held */
+    private final byte[] _id = new byte[ID_LEN];
+
+    /**
+     *  On-heap storage.
+     *  Use Torrents.createPeers() for the configured storage.
+     */
     public Peers() {
-        super();
+        this(null, null);
+    }
+
+    /**
+     *  The storage, seed mix, global peer count, expiry wheel,
+     *  and journal are those of the shard.
+     *
+     *  @param ih our torrent, or null
+     *  @param shard our shard, or null for defaults
+     *  @since 0.20.0
+     */
+    Peers(InfoHash ih, TorrentShard shard) {
+        _ih = ih;
+        if (shard != null) {
+            _wheel = shard.getExpiryWheel();
+            _journal = shard.getJournal();
+            _arena = shard.getArena();
+            _total = shard.getPeerCounter();
+            _seedPercent = shard.getSeedPercent();
+        } else {
+            _wheel = null;
+            _journal = null;
+            _arena = null;
+            _total = null;
+            _seedPercent = DEFAULT_SEED_PERCENT;
+        }
+        _index = new int[MIN_INDEX];
+        _store = new HeapPeerStore(MIN_CAPACITY);
+    }
+
+    /**
+     *  @return a view of the peer, or null if not present
+     */
+    public synchronized Peer get(PID pid) {
+        int i = find(pid.getData(), 0);
+        return i >= 0 ? peerAt(_index[i] - 1) : null;
+    }
+
+    /**
+     *  Add the peer if not present.
+     *  If added, the Peer is attached to this table, and subsequent
+     *  calls to its setLeft() will update the table.
+     *
+     *  @return a view of the existing peer, or null if added
+     */
+    public synchronized Peer putIfAbsent(PID pid, Peer peer) {
+        byte[] id = pid.getData();
+        int i = find(id, 0);
+        if (i >= 0)
+            return peerAt(_index[i] - 1);
+        int r = add(id, 0, peer.getHashBytes(), 0, peer.lastSeen(), peer.isSeed());
+        journalPut(r);
+        peer.setPeers(this);
+        return null;
+    }
+
+    /**
+     *  Add or update a peer from a snapshot or journal.
+     *  A present peer is updated only if the record is not older,
+     *  so replay is idempotent, and announces received while
+     *  loading are not overwritten.
+     *
+     *  @param rec RECORD_LEN bytes at off, as written by export()
+     *  @return true if added
+     *  @since 0.20.0
+     */
+    synchronized boolean restore(byte[] rec, int off) {
+        long seen = DataHelper.fromLong(rec, off + ID_LEN + HASH_LEN, 8);
+        boolean isSeed = rec[off + ID_LEN + HASH_LEN + 8] != 0;
+        int i = find(rec, off);
+        if (i >= 0) {
+            int r = _index[i] - 1;
+            if (seen >= _store.getSeen(r))
+                updateAt(r, isSeed, seen);
+            return false;
+        }
+        add(rec, off, rec, off + ID_LEN, seen, isSeed);
+        return true;
+    }
+
+    /**
+     *  Remove a peer for a journaled stop,
+     *  only if not seen after the stop.
+     *
+     *  @param id ID_LEN bytes at off
+     *  @param time of the stop
+     *  @since 0.20.0
+     */
+    synchronized void restoreStop(byte[] id, int off, long time) {
+        int i = find(id, off);
+        if (i >= 0 && _store.getSeen(_index[i] - 1) <= time)
+            removeAt(i);
+    }
+
+    /**
+     *  Copy the peers seen since cutoff, oldest first, for a snapshot.
+     *  Each is RECORD_LEN bytes: the ID, the hash, the last seen time,
+     *  and a seed flag.
+     *
+     *  @return non-null, may be empty
+     *  @since 0.20.0
+     */
+    synchronized byte[] export(long cutoff) {
+        int count = 0;
+        for (int r = _head; r != NIL; r = _store.getNext(r)) {
+            if (_store.getSeen(r) >= cutoff)
+                count++;
+        }
+        byte[] rv = new byte[count * RECORD_LEN];
+        int off = 0;
+        for (int r = _head; r != NIL; r = _store.getNext(r)) {
+            if (_store.getSeen(r) < cutoff)
+                continue;
+            getRecord(r, rv, off);
+            off += RECORD_LEN;
+        }
+        return rv;
+    }
+
+    /**
+     *  Copy record r to buf in the export() format
+     */
+    private void getRecord(int r, byte[] buf, int off) {
+        _store.getID(r, buf, off);
+        _store.getHash(r, buf, off + ID_LEN);
+        DataHelper.toLong(buf, off + ID_LEN + HASH_LEN, 8, _store.getSeen(r));
+        buf[off + ID_LEN + HASH_LEN + 8] = (byte) (r < _seeds ? 1 : 0);
+    }
+
+    /**
+     *  Queue record r for the journal, if enabled.
+     *  Called with the lock held, so the journal order
+     *  for this swarm is the order of the changes.
+     */
+    private void journalPut(int r) {
+        if (_journal != null && _ih != null && !_closed) {
+            byte[] rec = new byte[RECORD_LEN];
+            getRecord(r, rec, 0);
+            _journal.logPut(_ih, rec);
+        }
+    }
+
+    /**
+     *  Add a peer, not present, at the end of the expiry list
+     *
+     *  @return the record number
+     */
+    private int add(byte[] id, int idOff, byte[] hash, int hashOff, long seen, boolean isSeed) {
+        if (_used + 1 > (_index.length * 3) / 4) {
+            // grow, or just remove the tombstones
+            int cap = _index.length;
+            if (_size + 1 > cap / 2)
+                cap *= 2;
+            rehash(cap);
+        }
+        if (_size >= _store.capacity())
+            resize(_store.capacity() * 3 / 2);
+        int r = _size++;
+        _store.set(r, id, idOff, hash, hashOff, seen);
+        if (_total != null && !_closed)
+            _total.increment();
+        int i = hash(id, idOff) & (_index.length - 1);
+        while (_index[i] > 0) {
+            i = (i + 1) & (_index.length - 1);
+        }
+        if (_index[i] == FREE)
+            _used++;
+        _index[i] = r + 1;
+        append(r);
+        if (isSeed) {
+            swap(r, _seeds);
+            r = _seeds++;
+        }
+        schedule();
+        return r;
+    }
+
+    /**
+     *  @return true if it was present
+     */
+    public boolean remove(PID pid) {
+        return remove(pid.getData(), 0);
     }
 
-    public int countSeeds() {
+    /**
+     *  In place, for UDP announces.
+     *
+     *  @param id ID_LEN bytes at off
+     *  @return true if it was present
+     *  @since 0.20.0
+     */
+    synchronized boolean remove(byte[] id, int off) {
+        int i = find(id, off);
+        if (i < 0)
+            return false;
+        removeAt(i);
+        if (_journal != null && _ih != null && !_closed)
+            _journal.logStop(_ih, id, off, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     *  Update a present peer in place, as Peer.setLeft() does,
+     *  without a PID or a Peer view. For UDP announces.
+     *
+     *  @param id ID_LEN bytes at off
+     *  @return false if not present
+     *  @since 0.20.0
+     */
+    synchronized boolean updateIfPresent(byte[] id, int off, boolean isSeed, long seen) {
+        int i = find(id, off);
+        if (i < 0)
+            return false;
+        int r = updateAt(_index[i] - 1, isSeed, seen);
+        journalPut(r);
+        return true;
+    }
+
+    /**
+     *  Called from Peer.setLeft().
+     *  Does nothing if the peer was removed.
+     */
+    synchronized void update(byte[] id, boolean isSeed, long seen) {
+        int i = find(id, 0);
+        if (i < 0)
+            return;
+        int r = updateAt(_index[i] - 1, isSeed, seen);
+        journalPut(r);
+    }
+
+    /**
+     *  Set the last seen time and move to the end of the expiry list,
+     *  and move between the seeds and leechers if changed.
+     *
+     *  @return the new record number
+     */
+    private int updateAt(int r, boolean isSeed, long seen) {
+        _store.setSeen(r, seen);
+        if (r != _tail) {
+            unlink(r);
+            append(r);
+        }
+        if (isSeed) {
+            if (r >= _seeds) {
+                swap(r, _seeds);
+                r = _seeds++;
+            }
+        } else {
+            if (r < _seeds) {
+                swap(r, --_seeds);
+                r = _seeds;
+            }
+        }
+        return r;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return _size <= 0;
+    }
+
+    public synchronized int countSeeds() {
+        return _seeds;
+    }
+
+    public synchronized int countLeeches() {
+        return _size - _seeds;
+    }
+
+    /**
+     *  Random peers for an announce reply, without copying the swarm.
+     *  Time and space are O(want), not O(size).
+     *
+     *  Seeds get only leechers. Leechers get a mix, with the configured
+     *  percentage of seeds if there are enough, filled out with
+     *  whichever kind there are more of.
+     *
+     *  @param want max number of peers
+     *  @param exclude the requester, may be null
+     *  @param isSeed is the requester a seed
+     *  @return the destination hashes of up to want random distinct peers,
+     *          not including exclude, 32 bytes each, concatenated,
+     *          non-null, may be empty
+     *  @since 0.20.0
+     */
+    public byte[] getRandomHashes(int want, PID exclude, boolean isSeed) {
+        return getRandomHashes(want, exclude, isSeed, null);
+    }
+
+    /**
+     *  As above, and the seed and leech counts, under the same lock,
+     *  so the counts in the reply agree with the peers in it.
+     *
+     *  @param counts out parameter, may be null, the number of seeds
+     *                at [0] and leeches at [1], including the requester
+     *  @since 0.20.0
+     */
+    public synchronized byte[] getRandomHashes(int want, PID exclude, boolean isSeed, int[] counts) {
+        int x = exclude != null ? find(exclude.getData(), 0) : -1;
+        if (x >= 0)
+            x = _index[x] - 1;
+        int seeds = countWanted(want, x, isSeed, true);
+        int leeches = countWanted(want, x, isSeed, false);
+        byte[] rv = new byte[(seeds + leeches) * HASH_LEN];
+        copyRandomHashes(0, _seeds, seeds, x, rv, 0);
+        copyRandomHashes(_seeds, _size, leeches, x, rv, seeds * HASH_LEN);
+        getCounts(counts);
+        return rv;
+    }
+
+    /**
+     *  Random peers for an announce reply, without copying the swarm.
+     *  Time is O(want), not O(size).
+     *  Selection is as in getRandomHashes(want, exclude, isSeed).
+     *
+     *  @param want max number of peers
+     *  @param exclude the requester, may be null
+     *  @param isSeed is the requester a seed
+     *  @param buf room for want * 32 bytes at off
+     *  @param counts out parameter, may be null, the number of seeds
+     *                at [0] and leeches at [1], including the requester,
+     *                set under the same lock as the hashes are picked
+     *  @return the number of hashes copied to buf, 0 to want
+     *  @since 0.20.0
+     */
+    public int getRandomHashes(int want, PID exclude, boolean isSeed, byte[] buf, int off, int[] counts) {
+        return getRandomHashes(want, exclude != null ? exclude.getData() : null, 0, isSeed, buf, off, counts);
+    }
+
+    /**
+     *  As above, with the requester's ID in place, for UDP announces.
+     *
+     *  @param exclude the requester's ID at xoff, may be null
+     *  @since 0.20.0
+     */
+    synchronized int getRandomHashes(int want, byte[] exclude, int xoff, boolean isSeed,
+                                     byte[] buf, int off, int[] counts) {
+        int x = exclude != null ? find(exclude, xoff) : -1;
+        if (x >= 0)
+            x = _index[x] - 1;
+        int seeds = countWanted(want, x, isSeed, true);
+        int leeches = countWanted(want, x, isSeed, false);
+        copyRandomHashes(0, _seeds, seeds, x, buf, off);
+        copyRandomHashes(_seeds, _size, leeches, x, buf, off + (seeds * HASH_LEN));
+        getCounts(counts);
+        return seeds + leeches;
+    }
+
+    /**
+     *  Caller must synchronize
+     *
+     *  @param counts may be null
+     */
+    private void getCounts(int[] counts) {
+        if (counts != null) {
+            counts[0] = _seeds;
+            counts[1] = _size - _seeds;
+        }
+    }
+
+    /**
+     *  @param x record to skip, or -1
+     *  @param seeds true for the number of seeds, false for leechers
+     */
+    private int countWanted(int want, int x, boolean isSeed, boolean seeds) {
+        int s = (x >= 0 && x < _seeds) ? _seeds - 1 : _seeds;
+        int l = (x >= _seeds) ? _size - _seeds - 1 : _size - _seeds;
+        if (isSeed)
+            return seeds ? 0 : Math.min(want, l);
+        int total = Math.min(want, s + l);
+        int ns = Math.min(s, ((total * _seedPercent) + 99) / 100);
+        int nl = Math.min(l, total - ns);
+        ns = total - nl;
+        return seeds ? ns : nl;
+    }
+
+    /**
+     *  Robert Floyd's algorithm, picks count distinct records
+     *  from records start to end - 1, skipping record x, in count iterations.
+     *
+     *  @param count 0 to the number of records in the range not including x
+     *  @param x record to skip, or -1
+     */
+    private void copyRandomHashes(int start, int end, int count, int x, byte[] buf, int off) {
+        if (count <= 0)
+            return;
+        boolean skip = x >= start && x < end;
+        int n = skip ? end - start - 1 : end - start;
+        if (count >= n) {
+            // all of them
+            for (int r = start; r < end; r++) {
+                if (r != x) {
+                    _store.getHash(r, buf, off);
+                    off += HASH_LEN;
+                }
+            }
+            return;
+        }
+        RandomSource rand = RandomSource.getInstance();
+        int[] picked = _picked.get();
+        if (picked.length < count) {
+            picked = new int[count];
+            _picked.set(picked);
+        }
+        for (int i = 0, j = n - count; i < count; i++, j++) {
+            int t = rand.nextInt(j + 1);
+            for (int k = 0; k < i; k++) {
+                if (picked[k] == t) {
+                    t = j;
+                    break;
+                }
+            }
+            picked[i] = t;
+            int r = start + t;
+            // skip over the excluded record
+            if (skip && r >= x)
+                r++;
+            _store.getHash(r, buf, off);
+            off += HASH_LEN;
+        }
+    }
+
+    /**
+     *  Remove the peers not seen since the expiration time,
+     *  oldest first, stopping at the first one that is not due.
+     *  Then reschedule on the wheel if not empty.
+     *  If empty, the caller should remove this from Torrents.
+     *  Called by the cleaner when our wheel bucket comes due.
+     *
+     *  @return the number of peers removed
+     *  @since 0.20.0
+     */
+    synchronized int expire(long now) {
+        _due = 0;
+        if (_closed || _wheel == null)
+            return 0;
+        long cutoff = now - _wheel.getExpireTime();
         int rv = 0;
-        for (Peer p : values()) {
-             if (p.isSeed())
-                 rv++;
+        while (_head != NIL && _store.getSeen(_head) < cutoff) {
+            removeAt(slotOf(_head));
+            rv++;
         }
+        if (_size > 0)
+            schedule();
         return rv;
     }
 
-    public int countLeeches() {
-        return size() - countSeeds();
+    /**
+     *  @return our torrent, or null
+     *  @since 0.20.0
+     */
+    InfoHash getInfoHash() {
+        return _ih;
+    }
+
+    /**
+     *  Put us on the wheel for the oldest peer,
+     *  if not already there. If empty, as of now,
+     *  so a swarm that never gets a peer is removed.
+     *
+     *  @since 0.20.0
+     */
+    synchronized void schedule() {
+        if (_wheel != null && _due == 0 && !_closed) {
+            long seen = _head != NIL ? _store.getSeen(_head) : System.currentTimeMillis();
+            _due = _wheel.schedule(this, seen);
+        }
+    }
+
+    /**
+     *  Call after removing this from Torrents.
+     *  Any peers still here, for example added by an announce
+     *  that raced with the removal, are subtracted from the global count,
+     *  and later changes are not counted.
+     *
+     *  @since 0.20.0
+     */
+    synchronized void close() {
+        if (_total != null && !_closed)
+            _total.add(-_size);
+        _closed = true;
+        // give the block back to the arena, as an announce
+        // may still get here after the removal
+        if (_store.isDirect())
+            resize(_size);
+    }
+
+    /**
+     *  @return a new list of views of all the peers
+     *  @since 0.20.0
+     */
+    public synchronized List<Peer> values() {
+        List<Peer> rv = new ArrayList<Peer>(_size);
+        for (int r = 0; r < _size; r++) {
+            rv.add(peerAt(r));
+        }
+        return rv;
+    }
+
+    /**
+     *  Over a copy of the peers, as in values(), so each peer present
+     *  at the call is returned once, and later changes are not seen.
+     *  Supports remove(), from this.
+     *
+     *  @since 0.20.0
+     */
+    public Iterator<Peer> iterator() {
+        return new PeerIterator();
+    }
+
+    /**
+     *  @return index slot or -1
+     */
+    private int find(byte[] id, int off) {
+        int mask = _index.length - 1;
+        int i = hash(id, off) & mask;
+        int e;
+        while ((e = _index[i]) != FREE) {
+            if (e > 0 && _store.idEquals(e - 1, id, off))
+                return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     *  @return index slot for record r
+     */
+    private int slotOf(int r) {
+        int mask = _index.length - 1;
+        _store.getID(r, _id, 0);
+        int i = hash(_id, 0) & mask;
+        while (_index[i] != r + 1) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     *  Remove the record at index slot i.
+     *  If it is a seed, move the last seed into its place.
+     *  Then move the last record into the hole.
+     */
+    private void removeAt(int i) {
+        int r = _index[i] - 1;
+        _index[i] = DELETED;
+        unlink(r);
+        if (_total != null && !_closed)
+            _total.decrement();
+        if (r < _seeds) {
+            _seeds--;
+            if (r != _seeds)
+                move(_seeds, r);
+            r = _seeds;
+        }
+        int last = --_size;
+        if (r != last)
+            move(last, r);
+        if (_size < _index.length / 8 && _index.length > MIN_INDEX)
+            rehash(_index.length / 2);
+        if (_size < _store.capacity() / 4 && _store.capacity() > MIN_CAPACITY)
+            resize(_store.capacity() / 2);
+    }
+
+    /**
+     *  Move a record and its index and list entries.
+     *  The record at to must not be in the index or the list.
+     */
+    private void move(int from, int to) {
+        _index[slotOf(from)] = to + 1;
+        _store.move(from, to);
+        relink(to);
+    }
+
+    /**
+     *  Exchange two records and their index and list entries
+     */
+    private void swap(int a, int b) {
+        if (a == b)
+            return;
+        int sa = slotOf(a);
+        int sb = slotOf(b);
+        _index[sa] = b + 1;
+        _index[sb] = a + 1;
+        _store.swap(a, b);
+        // if they were neighbors, they now point to themselves
+        relabel(a, a, b);
+        relabel(b, a, b);
+        relink(a);
+        relink(b);
+    }
+
+    /**
+     *  Exchange a and b in the links of record r
+     */
+    private void relabel(int r, int a, int b) {
+        int p = _store.getPrev(r);
+        if (p == a)
+            _store.setPrev(r, b);
+        else if (p == b)
+            _store.setPrev(r, a);
+        int n = _store.getNext(r);
+        if (n == a)
+            _store.setNext(r, b);
+        else if (n == b)
+            _store.setNext(r, a);
+    }
+
+    /**
+     *  Add record r to the end of the list
+     */
+    private void append(int r) {
+        _store.setPrev(r, _tail);
+        _store.setNext(r, NIL);
+        if (_tail == NIL)
+            _head = r;
+        else
+            _store.setNext(_tail, r);
+        _tail = r;
+    }
+
+    /**
+     *  Remove record r from the list
+     */
+    private void unlink(int r) {
+        int p = _store.getPrev(r);
+        int n = _store.getNext(r);
+        if (p == NIL)
+            _head = n;
+        else
+            _store.setNext(p, n);
+        if (n == NIL)
+            _tail = p;
+        else
+            _store.setPrev(n, p);
+    }
+
+    /**
+     *  Point the neighbors of record r at it, after it was moved
+     */
+    private void relink(int r) {
+        int p = _store.getPrev(r);
+        int n = _store.getNext(r);
+        if (p == NIL)
+            _head = r;
+        else
+            _store.setNext(p, r);
+        if (n == NIL)
+            _tail = r;
+        else
+            _store.setPrev(n, r);
+    }
+
+    /**
+     *  Resize the records, moving them on or off the heap
+     *  if the configuration and new size call for it,
+     *  and the arena has room. Once closed, always on the heap.
+     */
+    private void resize(int cap) {
+        cap = Math.max(cap, MIN_CAPACITY);
+        boolean direct = _arena != null && !_closed && cap >= MIN_DIRECT_CAPACITY;
+        PeerStore store = PeerStore.create(cap, direct ? _arena : null);
+        _store.copyTo(store, _size);
+        _store.release();
+        _store = store;
+    }
+
+    /**
+     *  Rebuild the index, removing the tombstones
+     *
+     *  @param cap power of 2
+     */
+    private void rehash(int cap) {
+        _index = new int[cap];
+        int mask = cap - 1;
+        for (int r = 0; r < _size; r++) {
+            _store.getID(r, _id, 0);
+            int i = hash(_id, 0) & mask;
+            while (_index[i] != FREE) {
+                i = (i + 1) & mask;
+            }
+            _index[i] = r + 1;
+        }
+        _used = _size;
+    }
+
+    private Peer peerAt(int r) {
+        byte[] id = new byte[ID_LEN];
+        _store.getID(r, id, 0);
+        byte[] h = new byte[HASH_LEN];
+        _store.getHash(r, h, 0);
+        return new Peer(this, id, h, _store.getSeen(r), r < _seeds);
+    }
+
+    /**
+     *  Peer IDs often start with a fixed client prefix,
+     *  so use all the bytes.
+     */
+    private static int hash(byte[] b, int off) {
+        int h = 0;
+        for (int i = off; i < off + ID_LEN; i++) {
+            h = 31 * h + b[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     *  Over a snapshot taken with the lock held.
+     *  remove() removes the peer by ID, if it's still here.
+     */
+    private class PeerIterator implements Iterator<Peer> {
+        private final Iterator<Peer> iter = values().iterator();
+        private Peer last;
+
+        public boolean hasNext() {
+            return iter.hasNext();
+        }
+
+        public Peer next() {
+            last = iter.next();
+            return last;
+        }
+
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            synchronized(Peers.this) {
+                int i = find(last.getIDBytes(), 0);
+                if (i >= 0)
+                    removeAt(i);
+            }
+            last = null;
+        }
+    }
+
+/****
+    public static void main(String[] args) {
+        test(10000);
+        test(100000);
+        test(1000000);
+        stress();
+        benchSample(50);
+        benchSample(1000);
+        benchSample(10000);
+        benchSample(100000);
+    }
+
+    // getRandomHashes() vs. the old copy and shuffle of values()
+    private static void benchSample(int n) {
+        Peers peers = new Peers();
+        java.util.Random r = new java.util.Random();
+        PID[] pids = new PID[n];
+        for (int i = 0; i < n; i++) {
+            byte[] id = new byte[ID_LEN];
+            r.nextBytes(id);
+            byte[] h = new byte[HASH_LEN];
+            r.nextBytes(h);
+            pids[i] = new PID(id);
+            peers.putIfAbsent(pids[i], new Peer(id, new Hash(h)));
+        }
+        int runs = Math.max(100, 20000000 / n);
+        int want = 25;
+        java.lang.management.ThreadMXBean tmx = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) tmx;
+        long tid = Thread.currentThread().getId();
+        for (int pass = 0; pass < 2; pass++) {
+            long a0 = smx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                PID pid = pids[i % n];
+                java.util.List<Peer> list = peers.values();
+                list.remove(peers.get(pid));
+                java.util.Collections.shuffle(list, r);
+                if (list.size() > want)
+                    list = list.subList(0, want);
+                byte[] rv = new byte[32 * list.size()];
+                for (int j = 0; j < list.size(); j++)
+                    System.arraycopy(list.get(j).getHashBytes(), 0, rv, j * 32, 32);
+            }
+            long t1 = System.nanoTime();
+            long a1 = smx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < runs; i++) {
+                peers.getRandomHashes(want, pids[i % n], false);
+            }
+            long t2 = System.nanoTime();
+            long a2 = smx.getThreadAllocatedBytes(tid);
+            if (pass == 1)
+                System.out.println(n + " peers: old " + ((t1 - t0) / runs) + " ns " + ((a1 - a0) / runs) + " B; new " +
+                                   ((t2 - t1) / runs) + " ns " + ((a2 - a1) / runs) + " B per announce");
+        }
+    }
+
+    // announce threads and a cleaner thread at the same time,
+    // then check the counts against a full scan
+    // adds, updates, removes, iterator removes, and expiration, all at once
+    private static void stress() {
+        // 20 ms expiration, so the cleaner path removes seeds and leechers under load
+        Torrents torrents = new Torrents(1620, 1200, 20, 0, DEFAULT_SEED_PERCENT, 1, null);
+        final Peers peers = torrents.createPeers(new InfoHash(new byte[InfoHash.LENGTH]));
+        final byte[][] pids = new byte[5000][];
+        java.util.Random r = new java.util.Random();
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = new byte[ID_LEN];
+            r.nextBytes(pids[i]);
+        }
+        final byte[] h = new byte[HASH_LEN];
+        final long end = System.currentTimeMillis() + 10*1000;
+        final java.util.concurrent.atomic.AtomicInteger expired = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] threads = new Thread[10];
+        for (int t = 0; t < threads.length - 2; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    java.util.Random r = new java.util.Random();
+                    while (System.currentTimeMillis() < end) {
+                        PID pid = new PID(pids[r.nextInt(pids.length)]);
+                        if (r.nextInt(8) == 0) {
+                            peers.remove(pid);
+                            continue;
+                        }
+                        Peer p = peers.get(pid);
+                        if (p == null) {
+                            p = new Peer(pid.getData(), new Hash(h));
+                            Peer p2 = peers.putIfAbsent(pid, p);
+                            if (p2 != null)
+                                p = p2;
+                        }
+                        p.setLeft(r.nextInt(3));
+                        if (peers.countLeeches() < 0 || peers.countSeeds() < 0)
+                            throw new IllegalStateException();
+                    }
+                }
+            };
+        }
+        threads[threads.length - 2] = new Thread() {
+            public void run() {
+                while (System.currentTimeMillis() < end) {
+                    synchronized(peers) {
+                        expired.addAndGet(peers.expire(System.currentTimeMillis()));
+                        check(peers);
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        threads[threads.length - 1] = new Thread() {
+            public void run() {
+                java.util.Random r = new java.util.Random();
+                while (System.currentTimeMillis() < end) {
+                    java.util.Set<PID> seen = new java.util.HashSet<PID>();
+                    for (Iterator<Peer> iter = peers.iterator(); iter.hasNext(); ) {
+                        if (!seen.add(new PID(iter.next().getIDBytes())))
+                            throw new IllegalStateException("returned twice");
+                        if (r.nextInt(4) == 0)
+                            iter.remove();
+                    }
+                }
+            }
+        };
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            try { t.join(); } catch (InterruptedException ie) {}
+        }
+        int seeds = 0;
+        int size = 0;
+        for (Peer p : peers) {
+            size++;
+            if (p.isSeed())
+                seeds++;
+        }
+        System.out.println("stress: expired " + expired + " size " + peers.size() + " scan " + size +
+                           " seeds " + peers.countSeeds() + " scan " + seeds +
+                           " leeches " + peers.countLeeches() + " scan " + (size - seeds));
+        if (size != peers.size() || seeds != peers.countSeeds())
+            throw new IllegalStateException("count mismatch");
+    }
+
+    // caller must hold the lock
+    private static void check(Peers p) {
+        if (p.countSeeds() + p.countLeeches() != p.size() || p._seeds < 0 || p._seeds > p._size)
+            throw new IllegalStateException("count mismatch, size " + p._size + " seeds " + p._seeds);
+        byte[] id = new byte[ID_LEN];
+        for (int r = 0; r < p._size; r++) {
+            p._store.getID(r, id, 0);
+            int i = p.find(id, 0);
+            if (i < 0 || p._index[i] - 1 != r)
+                throw new IllegalStateException("index mismatch at " + r);
+        }
+    }
+
+    // same fields as the old Peer
+    private static class OldPeer {
+        final Hash hash;
+        long lastSeen, bytesLeft;
+        OldPeer(Hash h) { hash = h; }
+    }
+
+    private static void test(int n) {
+        java.util.Random r = new java.util.Random();
+        byte[][] pids = new byte[n][];
+        byte[][] hashes = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            pids[i] = new byte[ID_LEN];
+            r.nextBytes(pids[i]);
+            hashes[i] = new byte[HASH_LEN];
+            r.nextBytes(hashes[i]);
+        }
+        long chmSize = testCHM(pids, hashes);
+        long peersSize = testPeers(pids, hashes);
+        System.out.println(n + " peers: CHM " + (chmSize / 1024) + " KB; Peers " + (peersSize / 1024) + " KB");
+    }
+
+    private static long testCHM(byte[][] pids, byte[][] hashes) {
+        long before = used();
+        java.util.concurrent.ConcurrentHashMap<PID, OldPeer> chm = new java.util.concurrent.ConcurrentHashMap<PID, OldPeer>();
+        for (int i = 0; i < pids.length; i++) {
+            chm.put(new PID(pids[i].clone()), new OldPeer(new Hash(hashes[i].clone())));
+        }
+        long rv = used() - before;
+        if (chm.size() != pids.length)
+            throw new IllegalStateException();
+        return rv;
+    }
+
+    private static long testPeers(byte[][] pids, byte[][] hashes) {
+        long before = used();
+        Peers peers = new Peers();
+        for (int i = 0; i < pids.length; i++) {
+            peers.putIfAbsent(new PID(pids[i]), new Peer(pids[i], new Hash(hashes[i])));
+        }
+        long rv = used() - before;
+        if (peers.size() != pids.length)
+            throw new IllegalStateException();
+        return rv;
+    }
+
+    private static long used() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try { Thread.sleep(100); } catch (InterruptedException ie) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
     }
+****/
 }
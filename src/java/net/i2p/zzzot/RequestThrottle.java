@@ -0,0 +1,162 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.data.Base64;
+import net.i2p.data.Hash;
+
+/**
+ *  Per-requestor throttles, a token bucket for each destination hash
+ *  and action, shared by HTTP and UDP.
+ *
+ *  Each bucket holds a minute's worth of requests and refills at
+ *  the configured rate per minute. It is kept as a single AtomicLong,
+ *  the time at which it will be full again (GCRA), so a check
+ *  is a map lookup and a CAS, with no locks.
+ *
+ *  A bucket that is full again is the same as no bucket,
+ *  so the cleaner removes those. If there are MAX_ENTRIES buckets
+ *  when a new requestor arrives, the full ones are removed then,
+ *  at most once a second, and if that doesn't make room, the new
+ *  requestor is rejected. So creating lots of identities can't
+ *  turn the throttle off for everybody.
+ *
+ *  @since 0.20.0
+ */
+public class RequestThrottle {
+
+    public static final int CONNECT = 0;
+    public static final int ANNOUNCE = 1;
+    public static final int SCRAPE = 2;
+    private static final int ACTIONS = 3;
+    private static final long MINUTE = 60*1000;
+    private static final int MAX_ENTRIES = 16384;
+    private static final long MIN_PURGE_INTERVAL = 1000;
+
+    /** ms per request for each action, 0 if unlimited */
+    private final long[] _interval = new long[ACTIONS];
+    private final ConcurrentHashMap<Hash, AtomicLong>[] _buckets;
+    private final LongAdder[] _rejected = new LongAdder[ACTIONS];
+    /** last purge() for each action */
+    private final AtomicLong[] _lastPurge = new AtomicLong[ACTIONS];
+
+    /**
+     *  @param perMinute for CONNECT, ANNOUNCE, and SCRAPE, 0 for unlimited
+     */
+    @SuppressWarnings("unchecked")
+    public RequestThrottle(int[] perMinute) {
+        _buckets = (ConcurrentHashMap<Hash, AtomicLong>[]) new ConcurrentHashMap[ACTIONS];
+        for (int i = 0; i < ACTIONS; i++) {
+            int n = perMinute[i];
+            if (n > 0)
+                _interval[i] = Math.max(1, MINUTE / n);
+            _buckets[i] = new ConcurrentHashMap<Hash, AtomicLong>();
+            _rejected[i] = new LongAdder();
+            _lastPurge[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     *  @param h the requestor's destination hash, non-null
+     *  @return true if allowed, false if throttled
+     */
+    public boolean allow(int action, Hash h) {
+        long interval = _interval[action];
+        if (interval == 0)
+            return true;
+        ConcurrentHashMap<Hash, AtomicLong> buckets = _buckets[action];
+        long now = System.currentTimeMillis();
+        AtomicLong full = buckets.get(h);
+        if (full == null) {
+            if (buckets.size() >= MAX_ENTRIES && !purge(action, now)) {
+                _rejected[action].increment();
+                return false;
+            }
+            AtomicLong a = new AtomicLong(now + interval);
+            full = buckets.putIfAbsent(h, a);
+            if (full == null)
+                return true;
+        }
+        while (true) {
+            long f = full.get();
+            long nf = Math.max(f, now) + interval;
+            if (nf - now > MINUTE) {
+                _rejected[action].increment();
+                return false;
+            }
+            if (full.compareAndSet(f, nf))
+                return true;
+        }
+    }
+
+    /**
+     *  For HTTP, where the tunnel tells us the requestor's hash.
+     *
+     *  @param b64Hash the X-I2P-DestHash header, may be null
+     *  @return true if allowed or b64Hash is null or bad, false if throttled
+     */
+    public boolean allow(int action, String b64Hash) {
+        if (b64Hash == null || _interval[action] == 0)
+            return true;
+        byte[] b = Base64.decode(b64Hash);
+        if (b == null || b.length != Hash.HASH_LENGTH)
+            return true;
+        return allow(action, Hash.create(b));
+    }
+
+    /**
+     *  Remove the full buckets for the action, if not done in the last second.
+     *
+     *  @return true if there's room for a new one
+     */
+    private boolean purge(int action, long now) {
+        AtomicLong last = _lastPurge[action];
+        long l = last.get();
+        if (now - l >= MIN_PURGE_INTERVAL && last.compareAndSet(l, now))
+            _buckets[action].values().removeIf(a -> a.get() <= now);
+        return _buckets[action].size() < MAX_ENTRIES;
+    }
+
+    /**
+     *  Remove the full buckets. Called by the cleaner.
+     */
+    void clean() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < ACTIONS; i++) {
+            if (_interval[i] > 0)
+                _buckets[i].values().removeIf(a -> a.get() <= now);
+        }
+    }
+
+    /**
+     *  Resets the count to zero.
+     *
+     *  @return the number throttled since the last call
+     */
+    long getRejected(int action) {
+        return _rejected[action].sumThenReset();
+    }
+
+    void clear() {
+        for (int i = 0; i < ACTIONS; i++) {
+            _buckets[i].clear();
+            _rejected[i].reset();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  Writes a bencoded scrape reply to a stream as it goes,
+ *  instead of building a Map of Maps for BEncoder.
+ *
+ *  The output is the same as BEncoder on a Map of "files" to a Map of
+ *  infohash to a Map of complete, downloaded (always 0), and incomplete.
+ *
+ *  Bencoded dictionary keys must be in order, so
+ *  call file() in infohash order, see ORDER.
+ *
+ *  @since 0.20.0
+ */
+public class ScrapeWriter {
+
+    private final OutputStream _out;
+    private final byte[] _buf = new byte[24];
+
+    private static final byte[] FILES = DataHelper.getASCII("d5:filesd");
+    private static final byte[] IH_LEN = DataHelper.getASCII(InfoHash.LENGTH + ":");
+    private static final byte[] COMPLETE = DataHelper.getASCII("d8:completei");
+    private static final byte[] DOWNLOADED = DataHelper.getASCII("e10:downloadedi0e10:incompletei");
+    private static final byte[] END = DataHelper.getASCII("ee");
+    private static final byte[] FAILURE = DataHelper.getASCII("d14:failure reason");
+
+    /**
+     *  Unsigned, as bencode requires
+     */
+    public static final Comparator<InfoHash> ORDER = new InfoHashComparator();
+
+    /**
+     *  Writes the start of the reply
+     */
+    public ScrapeWriter(OutputStream out) throws IOException {
+        _out = out;
+        _out.write(FILES);
+    }
+
+    /**
+     *  One torrent
+     */
+    public void file(InfoHash ih, Peers peers) throws IOException {
+        _out.write(IH_LEN);
+        _out.write(ih.getData());
+        _out.write(COMPLETE);
+        writeInt(peers.countSeeds());
+        _out.write(DOWNLOADED);
+        writeInt(peers.countLeeches());
+        _out.write(END);
+    }
+
+    /**
+     *  Writes the end of the reply. Does not flush or close the stream.
+     */
+    public void finish() throws IOException {
+        _out.write(END);
+    }
+
+    /**
+     *  Every torrent, shard by shard.
+     *  Shard order is infohash order, so only one shard's keys
+     *  at a time are copied and sorted, not the whole table.
+     */
+    public static void writeAll(Torrents torrents, OutputStream out) throws IOException {
+        ScrapeWriter w = new ScrapeWriter(out);
+        for (int i = 0; i < torrents.getShardCount(); i++) {
+            TorrentShard shard = torrents.getShard(i);
+            InfoHash[] keys = shard.keySet().toArray(new InfoHash[0]);
+            Arrays.sort(keys, ORDER);
+            for (InfoHash ih : keys) {
+                Peers peers = shard.get(ih);
+                if (peers != null)
+                    w.file(ih, peers);
+            }
+        }
+        w.finish();
+    }
+
+    /**
+     *  The requested torrents, in one pass, sorted, without duplicates.
+     *  Unknown torrents are left out.
+     *
+     *  @param ihs will be sorted
+     *  @since 0.20.0
+     */
+    public static void write(Torrents torrents, List<InfoHash> ihs, OutputStream out) throws IOException {
+        ScrapeWriter w = new ScrapeWriter(out);
+        ihs.sort(ORDER);
+        InfoHash prev = null;
+        for (InfoHash ih : ihs) {
+            if (ih.equals(prev))
+                continue;
+            prev = ih;
+            Peers peers = torrents.get(ih);
+            if (peers != null)
+                w.file(ih, peers);
+        }
+        w.finish();
+    }
+
+    /**
+     *  A failure reply instead
+     */
+    public static void writeFailure(OutputStream out, String msg) throws IOException {
+        byte[] m = DataHelper.getUTF8(msg);
+        out.write(FAILURE);
+        out.write(DataHelper.getASCII(Integer.toString(m.length)));
+        out.write(':');
+        out.write(m);
+        out.write('e');
+    }
+
+    /**
+     *  Decimal ASCII, without a String
+     *
+     *  @param v non-negative
+     */
+    private void writeInt(int v) throws IOException {
+        int off = _buf.length;
+        do {
+            _buf[--off] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        _out.write(_buf, off, _buf.length - off);
+    }
+
+    private static class InfoHashComparator implements Comparator<InfoHash> {
+        public int compare(InfoHash l, InfoHash r) {
+            byte[] lb = l.getData();
+            byte[] rb = r.getData();
+            for (int i = 0; i < InfoHash.LENGTH; i++) {
+                int c = (lb[i] & 0xff) - (rb[i] & 0xff);
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    }
+
+/****
+    // peak and total allocation for 100k torrents, Map and BEncoder vs. this
+    // Java 17: BEncoder 118-137 MB allocated, 32 MB of maps live before encoding;
+    // streamed 833 KB allocated in total
+    public static void main(String[] args) throws Exception {
+        int n = 100000;
+        Torrents torrents = new Torrents(27*60, 20*60);
+        java.util.Random r = new java.util.Random();
+        for (int i = 0; i < n; i++) {
+            byte[] b = new byte[InfoHash.LENGTH];
+            r.nextBytes(b);
+            InfoHash ih = new InfoHash(b);
+            torrents.putIfAbsent(ih, torrents.createPeers(ih));
+        }
+        OutputStream nul = new OutputStream() {
+            public void write(int b) {}
+            public void write(byte[] b, int off, int len) {}
+        };
+        java.lang.management.ThreadMXBean tmx = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) tmx;
+        long tid = Thread.currentThread().getId();
+        Runtime rt = Runtime.getRuntime();
+        for (int pass = 0; pass < 3; pass++) {
+            System.gc();
+            long u0 = rt.totalMemory() - rt.freeMemory();
+            long a0 = smx.getThreadAllocatedBytes(tid);
+            // as in scrape.jsp before 0.20.0
+            java.util.Map<String, Object> m = new java.util.HashMap<String, Object>(4);
+            java.util.Map<byte[], java.util.Map> files = new java.util.HashMap<byte[], java.util.Map>();
+            for (InfoHash ih : torrents.keySet()) {
+                Peers peers = torrents.get(ih);
+                java.util.Map<String, Object> dict = new java.util.HashMap<String, Object>();
+                dict.put("complete", Integer.valueOf(peers.countSeeds()));
+                dict.put("incomplete", Integer.valueOf(peers.countLeeches()));
+                dict.put("downloaded", Integer.valueOf(0));
+                files.put(ih.getData(), dict);
+            }
+            m.put("files", files);
+            long u1 = rt.totalMemory() - rt.freeMemory();
+            org.klomp.snark.bencode.BEncoder.bencode(m, nul);
+            long a1 = smx.getThreadAllocatedBytes(tid);
+            m = null;
+            files = null;
+            System.gc();
+            long a2 = smx.getThreadAllocatedBytes(tid);
+            writeAll(torrents, nul);
+            long a3 = smx.getThreadAllocatedBytes(tid);
+            System.out.println("BEncoder: " + ((a1 - a0) / 1024) + " KB allocated, " + ((u1 - u0) / 1024) + " KB live before encoding");
+            System.out.println("Streamed: " + ((a3 - a2) / 1024) + " KB allocated");
+        }
+    }
+****/
+}
@@ -0,0 +1,262 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+import net.i2p.util.I2PAppThread;
+import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  A binary snapshot of all the swarms, so a restart
+ *  doesn't leave clients with empty peer lists for a full interval.
+ *
+ *  Written to a temp file and renamed, so a crash while writing
+ *  leaves the previous snapshot. Loaded in a background thread
+ *  by streaming, so startup isn't delayed, and announces
+ *  received while loading are kept.
+ *
+ *  If there is a Journal, this is its base image, see Journal.
+ *
+ *  Format, big-endian:
+ *<pre>
+ *  magic "ZzzOTsnp" (8)
+ *  version (4)
+ *  time written (8)
+ *  for each torrent:
+ *    1 (1)
+ *    infohash (20)
+ *    peer count (4)
+ *    for each peer, oldest first:
+ *      peer ID (20)
+ *      destination hash (32)
+ *      last seen (8)
+ *      seed flag (1)
+ *  0 (1)
+ *</pre>
+ *
+ *  @since 0.20.0
+ */
+class Snapshot implements Runnable {
+
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final Torrents _torrents;
+    private final File _file;
+    private final long _expireTime;
+    /** may be null */
+    private final Journal _journal;
+    private volatile boolean _loaded;
+    private volatile boolean _stopping;
+
+    private static final byte[] MAGIC = DataHelper.getASCII("ZzzOTsnp");
+    private static final int VERSION = 1;
+    private static final int BUFSIZE = 64*1024;
+    private static final int MORE = 1;
+    private static final int END = 0;
+
+    /**
+     *  @param expireTime peers older than this are not written or loaded, in ms
+     *  @param journal to replay after loading and compact after writing, or null
+     */
+    public Snapshot(I2PAppContext ctx, Torrents torrents, File file, long expireTime, Journal journal) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(Snapshot.class);
+        _torrents = torrents;
+        _file = file;
+        _expireTime = expireTime;
+        _journal = journal;
+    }
+
+    /**
+     *  Start loading in a background thread
+     */
+    public void startLoad() {
+        if (!_file.exists() && _journal == null) {
+            _loaded = true;
+            return;
+        }
+        Thread t = new I2PAppThread(this, "ZzzOT snapshot loader", true);
+        t.start();
+    }
+
+    /**
+     *  Stop loading, if in progress. A load in progress
+     *  will not be completed, so the next write() is skipped,
+     *  to keep the previous snapshot.
+     */
+    public void stop() {
+        _stopping = true;
+    }
+
+    /**
+     *  The loader
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        long cutoff = start - _expireTime;
+        if (_file.exists())
+            load(cutoff);
+        if (_journal != null && !_stopping) {
+            int records = _journal.replay(_torrents, cutoff);
+            if (_log.shouldInfo())
+                _log.info("Replayed " + records + " journal records");
+        }
+        if (!_stopping)
+            _loaded = true;
+    }
+
+    private void load(long cutoff) {
+        long start = System.currentTimeMillis();
+        int torrents = 0;
+        int peers = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file), BUFSIZE));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!DataHelper.eq(magic, MAGIC))
+                throw new IOException("bad magic");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported version " + version);
+            in.readLong();
+            byte[] rec = new byte[Peers.RECORD_LEN];
+            while (!_stopping) {
+                int tag = in.read();
+                if (tag == END)
+                    break;
+                // cut off at a record boundary
+                if (tag < 0)
+                    throw new EOFException();
+                if (tag != MORE)
+                    throw new IOException("bad tag " + tag);
+                byte[] ih = new byte[InfoHash.LENGTH];
+                in.readFully(ih);
+                int count = in.readInt();
+                if (count < 0)
+                    throw new IOException("bad count " + count);
+                Peers p = null;
+                for (int i = 0; i < count; i++) {
+                    in.readFully(rec);
+                    if (DataHelper.fromLong(rec, PID.LENGTH + Hash.HASH_LENGTH, 8) < cutoff)
+                        continue;
+                    // Peers that announced while we were loading are newer
+                    // than these, so these may expire up to one
+                    // expiration time late. That's fine.
+                    if (p == null) {
+                        p = _torrents.getOrCreate(new InfoHash(ih));
+                        torrents++;
+                    }
+                    if (p.restore(rec, 0))
+                        peers++;
+                }
+            }
+            if (_log.shouldInfo())
+                _log.info("Loaded " + peers + " peers in " + torrents + " torrents from " + _file +
+                          " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (EOFException eofe) {
+            // keep what we got, and overwrite it next time
+            if (_log.shouldWarn())
+                _log.warn("Truncated snapshot " + _file + ", loaded " + peers + " peers");
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed loading snapshot " + _file, ioe);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  Write all the swarms to a temp file, then rename it.
+     *  Does nothing if the load did not finish.
+     *  If there is a journal, rotate it first, and delete
+     *  the old files after, as this includes them.
+     *
+     *  @return success
+     */
+    public synchronized boolean write() {
+        if (!_loaded)
+            return false;
+        long seq = _journal != null ? _journal.rotate() : 0;
+        long start = System.currentTimeMillis();
+        long cutoff = start - _expireTime;
+        File tmp = new File(_file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        DataOutputStream out = null;
+        int torrents = 0;
+        int peers = 0;
+        try {
+            fos = new SecureFileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos, BUFSIZE));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start);
+            for (int i = 0; i < _torrents.getShardCount(); i++) {
+                for (Peers p : _torrents.getShard(i).values()) {
+                    InfoHash ih = p.getInfoHash();
+                    if (ih == null)
+                        continue;
+                    // copied under the swarm lock, written outside it
+                    byte[] recs = p.export(cutoff);
+                    if (recs.length <= 0)
+                        continue;
+                    out.writeByte(MORE);
+                    out.write(ih.getData());
+                    out.writeInt(recs.length / Peers.RECORD_LEN);
+                    out.write(recs);
+                    torrents++;
+                    peers += recs.length / Peers.RECORD_LEN;
+                }
+            }
+            out.writeByte(END);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, _file)) {
+                if (_log.shouldWarn())
+                    _log.warn("Failed rename snapshot " + tmp + " to " + _file);
+                tmp.delete();
+                return false;
+            }
+            if (_journal != null)
+                _journal.deleteUpTo(seq);
+            if (_log.shouldInfo())
+                _log.info("Saved " + peers + " peers in " + torrents + " torrents to " + _file +
+                          " in " + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed saving snapshot " + _file, ioe);
+            if (out != null) try { out.close(); } catch (IOException e) {}
+            tmp.delete();
+            return false;
+        }
+    }
+}
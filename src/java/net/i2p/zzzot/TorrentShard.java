@@ -0,0 +1,181 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.i2p.CoreVersion;
+import net.i2p.data.SDSCache;
+import net.i2p.util.VersionComparator;
+
+/**
+ *  The torrents for one range of infohashes, with their own map,
+ *  intern caches, counters, and expiry wheel, so that map resizes,
+ *  cache contention, and cleaner passes in one shard
+ *  do not stall the others.
+ *
+ *  @since 0.20.0
+ */
+class TorrentShard {
+
+    private final ConcurrentHashMap<InfoHash, Peers> _map;
+    private final SDSCache<InfoHash> _hashCache;
+    private final SDSCache<PID> _pidCache;
+    /** null if on the heap */
+    private final DirectArena _arena;
+    private final int _seedPercent;
+    private final ExpiryWheel _wheel;
+    /** may be null */
+    private final Journal _journal;
+    private final AtomicInteger _announces = new AtomicInteger();
+    private final LongAdder _peerCount = new LongAdder();
+
+    /**
+     *  @param cacheSize for each of the intern caches
+     *  @param expireTime peer expiration in ms
+     *  @param arena for peers outside the Java heap, or null
+     *  @param journal may be null
+     */
+    public TorrentShard(int cacheSize, long expireTime, DirectArena arena, int seedPercent, Journal journal) {
+        _map = new ConcurrentHashMap<InfoHash, Peers>();
+        _hashCache = new SDSCache<InfoHash>(InfoHash.class, InfoHash.LENGTH, cacheSize);
+        _pidCache = new SDSCache<PID>(PID.class, PID.LENGTH, cacheSize);
+        _arena = arena;
+        _seedPercent = seedPercent;
+        _wheel = new ExpiryWheel(expireTime);
+        _journal = journal;
+    }
+
+    public Peers get(InfoHash ih) {
+        return _map.get(ih);
+    }
+
+    /**
+     *  This is called for every announce except for event = STOPPED.
+     *  Hook it here to keep an announce counter.
+     */
+    public Peers putIfAbsent(InfoHash ih, Peers p) {
+        _announces.incrementAndGet();
+        return _map.putIfAbsent(ih, p);
+    }
+
+    /**
+     *  Not counted as an announce
+     */
+    public Peers getOrCreate(InfoHash ih) {
+        Peers rv = _map.get(ih);
+        if (rv == null) {
+            rv = createPeers(ih);
+            Peers p2 = _map.putIfAbsent(ih, rv);
+            if (p2 != null)
+                rv = p2;
+        }
+        return rv;
+    }
+
+    public boolean remove(InfoHash ih, Peers p) {
+        return _map.remove(ih, p);
+    }
+
+    public int size() {
+        return _map.size();
+    }
+
+    /**
+     *  Live view
+     */
+    public Set<InfoHash> keySet() {
+        return _map.keySet();
+    }
+
+    /**
+     *  Live view
+     */
+    public Collection<Peers> values() {
+        return _map.values();
+    }
+
+    public Peers createPeers(InfoHash ih) {
+        Peers rv = new Peers(ih, this);
+        rv.schedule();
+        return rv;
+    }
+
+    public InfoHash createInfoHash(byte[] data) {
+        return _hashCache.get(data);
+    }
+
+    public PID createPID(byte[] data) {
+        return _pidCache.get(data);
+    }
+
+    public int countPeers() {
+        return (int) _peerCount.sum();
+    }
+
+    /**
+     *  Resets the counter to zero.
+     */
+    public int getAnnounces() {
+        return _announces.getAndSet(0);
+    }
+
+    public ExpiryWheel getExpiryWheel() {
+        return _wheel;
+    }
+
+    /**
+     *  @return may be null
+     */
+    public Journal getJournal() {
+        return _journal;
+    }
+
+    /**
+     *  @return null if on the heap
+     */
+    public DirectArena getArena() {
+        return _arena;
+    }
+
+    public int getSeedPercent() {
+        return _seedPercent;
+    }
+
+    public LongAdder getPeerCounter() {
+        return _peerCount;
+    }
+
+    public void clear() {
+        for (Peers p : _map.values()) {
+            p.close();
+        }
+        _map.clear();
+        _wheel.clear();
+        // not available until 0.9.17
+        if (VersionComparator.comp(CoreVersion.VERSION, "0.9.17") >= 0) {
+            try {
+                _hashCache.clear();
+                _pidCache.clear();
+            } catch (Throwable t) {}
+        }
+        _announces.set(0);
+        _peerCount.reset();
+    }
+}
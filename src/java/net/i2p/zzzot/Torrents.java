@@ -16,43 +16,190 @@ package net.i2p.zzzot;
  *
  */
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashSet;
+import java.util.Set;
 
-import net.i2p.CoreVersion;
 import net.i2p.data.DataHelper;
-import net.i2p.data.SDSCache;
-import net.i2p.util.VersionComparator;
+import net.i2p.data.Hash;
 
 
 /**
  *  All the torrents
+ *
+ *  As of 0.20.0, this is a facade over a number of TorrentShards,
+ *  each holding a contiguous range of infohashes, by the first
+ *  two bytes, so shard order is infohash order. It is no longer a Map.
  */
-public class Torrents extends ConcurrentHashMap<InfoHash, Peers> {
+public class Torrents {
 
     private static final int CACHE_SIZE = 2048;
-    private final SDSCache<InfoHash> _hashCache;
-    private final SDSCache<PID> _pidCache;
+    private static final int MIN_CACHE_SIZE = 128;
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int MAX_SHARDS = 256;
+    private static final int DEST_CACHE_SIZE = 4096;
+    private final TorrentShard[] _shards;
+    /** null if on the heap */
+    private final DirectArena _arena;
+    private final DestHashCache _destCache;
     private final Integer _interval;
     private final int _udpLifetime;
-    private final AtomicInteger _announces = new AtomicInteger();
 
     /**
      *  @param interval in seconds
      *  @param udpInterval in seconds
      */
     public Torrents(int interval, int udpLifetime) {
-        super();
-        _hashCache = new SDSCache<InfoHash>(InfoHash.class, InfoHash.LENGTH, CACHE_SIZE);
-        _pidCache = new SDSCache<PID>(PID.class, PID.LENGTH, CACHE_SIZE);
+        this(interval, udpLifetime, 1000L * (interval + interval / 2), 0, Peers.DEFAULT_SEED_PERCENT, DEFAULT_SHARDS, null);
+    }
+
+    /**
+     *  @param interval in seconds
+     *  @param udpInterval in seconds
+     *  @param expireTime peer expiration in ms
+     *  @param offHeapMax store peers outside the Java heap, up to this many bytes,
+     *                    0 for on the heap
+     *  @param seedPercent target percentage of seeds in replies to leechers, 0-100
+     *  @param shards 1 to MAX_SHARDS
+     *  @param journal for all changes, or null
+     *  @since 0.20.0
+     */
+    Torrents(int interval, int udpLifetime, long expireTime, long offHeapMax,
+             int seedPercent, int shards, Journal journal) {
+        if (shards < 1 || shards > MAX_SHARDS)
+            throw new IllegalArgumentException("shards " + shards);
+        _shards = new TorrentShard[shards];
+        int cacheSize = Math.max(MIN_CACHE_SIZE, CACHE_SIZE / shards);
+        // shared, it's only used on resizes
+        _arena = offHeapMax > 0 ? new DirectArena(offHeapMax) : null;
+        for (int i = 0; i < shards; i++) {
+            _shards[i] = new TorrentShard(cacheSize, expireTime, _arena, seedPercent, journal);
+        }
+        _destCache = new DestHashCache(DEST_CACHE_SIZE);
         _interval = Integer.valueOf(interval);
         _udpLifetime = udpLifetime;
     }
 
+    /**
+     *  @return null if on the heap
+     *  @since 0.20.0
+     */
+    DirectArena getArena() {
+        return _arena;
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    TorrentShard getShard(int i) {
+        return _shards[i];
+    }
+
+    /**
+     *  The shard for an infohash, by its first two bytes
+     */
+    private TorrentShard shardFor(byte[] ih) {
+        int prefix = ((ih[0] & 0xff) << 8) | (ih[1] & 0xff);
+        return _shards[(prefix * _shards.length) >>> 16];
+    }
+
+    /**
+     *  Peer IDs usually start with a fixed client prefix,
+     *  so use the last byte, which is random.
+     */
+    private TorrentShard shardForPID(byte[] pid) {
+        return _shards[(pid[pid.length - 1] & 0xff) % _shards.length];
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    public Peers get(InfoHash ih) {
+        return shardFor(ih.getData()).get(ih);
+    }
+
+    /**
+     *  This is called for every announce except for event = STOPPED.
+     *  The announce counter is kept here.
+     *
+     *  @since 0.20.0
+     */
+    public Peers putIfAbsent(InfoHash ih, Peers p) {
+        return shardFor(ih.getData()).putIfAbsent(ih, p);
+    }
+
+    /**
+     *  For loading a snapshot, not counted as an announce
+     *
+     *  @since 0.20.0
+     */
+    Peers getOrCreate(InfoHash ih) {
+        return shardFor(ih.getData()).getOrCreate(ih);
+    }
+
+    /**
+     *  Remove only if mapped to p
+     *
+     *  @since 0.20.0
+     */
+    public boolean remove(InfoHash ih, Peers p) {
+        return shardFor(ih.getData()).remove(ih, p);
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    public int size() {
+        int rv = 0;
+        for (int i = 0; i < _shards.length; i++) {
+            rv += _shards[i].size();
+        }
+        return rv;
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    public boolean isEmpty() {
+        return size() <= 0;
+    }
+
+    /**
+     *  As of 0.20.0, a snapshot, not a live view
+     */
+    public Set<InfoHash> keySet() {
+        Set<InfoHash> rv = new HashSet<InfoHash>(size());
+        for (int i = 0; i < _shards.length; i++) {
+            rv.addAll(_shards[i].keySet());
+        }
+        return rv;
+    }
+
+    /**
+     *  Create an empty swarm with the configured storage,
+     *  scheduled for expiration.
+     *  Always use this instead of new Peers().
+     *
+     *  @since 0.20.0
+     */
+    public Peers createPeers(InfoHash ih) {
+        return shardFor(ih.getData()).createPeers(ih);
+    }
+
+    /**
+     *  As of 0.20.0, this is maintained as peers are added and removed,
+     *  and is O(1) per shard.
+     */
     public int countPeers() {
         int rv = 0;
-        for (Peers p : values()) {
-             rv += p.size();
+        for (int i = 0; i < _shards.length; i++) {
+            rv += _shards[i].countPeers();
         }
         return rv;
     }
@@ -83,7 +230,7 @@ public class Torrents extends ConcurrentHashMap<InfoHash, Peers> {
         byte[] d = DataHelper.getASCII(data);
         if (d.length != InfoHash.LENGTH)
             throw new IllegalArgumentException("bad infohash length " + d.length);
-        return _hashCache.get(d);
+        return shardFor(d).createInfoHash(d);
     }
 
     /**
@@ -96,51 +243,76 @@ public class Torrents extends ConcurrentHashMap<InfoHash, Peers> {
         byte[] d = DataHelper.getASCII(data);
         if (d.length != PID.LENGTH)
             throw new IllegalArgumentException("bad peer id length " + d.length);
-        return _pidCache.get(d);
+        return shardForPID(d).createPID(d);
     }
 
     /**
-     *  This is called for every announce except for event = STOPPED.
-     *  Hook it here to keep an announce counter.
+     *  Pull from cache or return new
      *
+     *  @param d 20 bytes, may be stored, do not reuse
+     *  @throws IllegalArgumentException if data is not the correct number of bytes
      *  @since 0.20.0
      */
-    @Override
-    public Peers putIfAbsent(InfoHash ih, Peers p) {
-        _announces.incrementAndGet();
-        return super.putIfAbsent(ih, p);
+    public InfoHash createInfoHash(byte[] d) throws IllegalArgumentException {
+        if (d.length != InfoHash.LENGTH)
+            throw new IllegalArgumentException("bad infohash length " + d.length);
+        return shardFor(d).createInfoHash(d);
     }
 
     /**
-     *  Return the number of announces since the last call.
-     *  Resets the counter to zero.
+     *  Pull from cache or return new
      *
+     *  @param d 20 bytes, may be stored, do not reuse
+     *  @throws IllegalArgumentException if data is not the correct number of bytes
      *  @since 0.20.0
      */
-    public int getAnnounces() {
-        return _announces.getAndSet(0);
+    public PID createPID(byte[] d) throws IllegalArgumentException {
+        if (d.length != PID.LENGTH)
+            throw new IllegalArgumentException("bad peer id length " + d.length);
+        return shardForPID(d).createPID(d);
     }
 
     /**
-     *  @since 0.12.0
+     *  Pull from cache or decode.
+     *
+     *  @param b64 the Base 64 destination, without a trailing ".i2p"
+     *  @param b64Hash the X-I2P-DestHash header, only if b64 is the
+     *                 X-I2P-DestB64 header, else null
+     *  @return null if b64 is not a valid destination
+     *  @since 0.20.0
      */
-    @Override
-    public void clear() {
-        super.clear();
-        clearCaches();
-        _announces.set(0);
+    public Hash createDestHash(String b64, String b64Hash) {
+        return _destCache.get(b64, b64Hash);
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    DestHashCache getDestHashCache() {
+        return _destCache;
+    }
+
+    /**
+     *  Return the number of announces since the last call.
+     *  Resets the counter to zero.
+     *
+     *  @since 0.20.0
+     */
+    public int getAnnounces() {
+        int rv = 0;
+        for (int i = 0; i < _shards.length; i++) {
+            rv += _shards[i].getAnnounces();
+        }
+        return rv;
     }
 
     /**
      *  @since 0.12.0
      */
-    private void clearCaches() {
-        // not available until 0.9.17
-        if (VersionComparator.comp(CoreVersion.VERSION, "0.9.17") >= 0) {
-            try {
-                _hashCache.clear();
-                _pidCache.clear();
-            } catch (Throwable t) {}
+    public void clear() {
+        for (int i = 0; i < _shards.length; i++) {
+            _shards[i].clear();
         }
+        _destCache.clear();
     }
 }
@@ -0,0 +1,276 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.util.Arrays;
+
+import net.i2p.data.DataHelper;
+
+/**
+ *  A reusable view of a UDP announce request (BEP 15),
+ *  reading the fields in place from the datagram payload.
+ *
+ *  The info hash is copied into a probe, which is only for
+ *  looking up the swarm, and the peer ID is used in place
+ *  by Peers. Interned InfoHash and PID objects are only made
+ *  when a new swarm or peer is added.
+ *
+ *  Not thread-safe, one per thread.
+ *
+ *  @since 0.20.0
+ */
+class UDPAnnounce {
+
+    public static final int MIN_LENGTH = 96;
+    public static final int PID_OFFSET = 36;
+    private static final int IH_OFFSET = 16;
+    private static final int TRANS_ID_OFFSET = 12;
+    private static final int LEFT_OFFSET = 64;
+    private static final int EVENT_OFFSET = 80;
+    private static final int WANT_OFFSET = 92;
+    private static final int HASH_LEN = 32;
+
+    private byte[] _data;
+    /** the probe's data, overwritten for each packet */
+    private final byte[] _ih = new byte[InfoHash.LENGTH];
+    /**
+     *  SimpleDataStructure keeps a reference to the array and
+     *  computes equals() and hashCode() from it each time,
+     *  so this is a lookup key for whatever is in _ih.
+     */
+    private final InfoHash _probe = new InfoHash(_ih);
+    private final byte[] _hashes;
+    private final int[] _counts = new int[2];
+
+    /**
+     *  @param maxResponses for the size of the peer hash buffer
+     */
+    public UDPAnnounce(int maxResponses) {
+        _hashes = new byte[maxResponses * HASH_LEN];
+    }
+
+    /**
+     *  @param data at least MIN_LENGTH bytes, not copied
+     */
+    public void wrap(byte[] data) {
+        _data = data;
+        System.arraycopy(data, IH_OFFSET, _ih, 0, InfoHash.LENGTH);
+    }
+
+    /**
+     *  The packet, with the peer ID at PID_OFFSET
+     */
+    public byte[] getData() {
+        return _data;
+    }
+
+    public int getTransactionID() {
+        return (int) DataHelper.fromLong(_data, TRANS_ID_OFFSET, 4);
+    }
+
+    public int getEvent() {
+        return (int) DataHelper.fromLong(_data, EVENT_OFFSET, 4);
+    }
+
+    public long getLeft() {
+        return DataHelper.fromLong8(_data, LEFT_OFFSET);
+    }
+
+    /**
+     *  Note: BEP 15 spec default is -1 but we read as a positive long
+     */
+    public long getNumWant() {
+        return DataHelper.fromLong(_data, WANT_OFFSET, 4);
+    }
+
+    /**
+     *  Only for lookups, valid until the next wrap(), do not store.
+     */
+    public InfoHash getInfoHashProbe() {
+        return _probe;
+    }
+
+    /**
+     *  A new or interned copy, for adding a swarm
+     */
+    public InfoHash createInfoHash(Torrents torrents) {
+        return torrents.createInfoHash(Arrays.copyOfRange(_data, IH_OFFSET, IH_OFFSET + InfoHash.LENGTH));
+    }
+
+    /**
+     *  A new or interned copy, for adding a peer
+     */
+    public PID createPID(Torrents torrents) {
+        return torrents.createPID(Arrays.copyOfRange(_data, PID_OFFSET, PID_OFFSET + PID.LENGTH));
+    }
+
+    /**
+     *  For Peers.getRandomHashes(), room for maxResponses hashes
+     */
+    public byte[] getHashBuffer() {
+        return _hashes;
+    }
+
+    /**
+     *  For Peers.getRandomHashes(), seeds at [0] and leeches at [1]
+     */
+    public int[] getCounts() {
+        return _counts;
+    }
+
+    /**
+     *  The connection ID, SipHash-2-4 of the 32-byte destination hash
+     *  followed by the 8-byte big-endian epoch.
+     *  The same as SipHashInline.hash24() on that 40-byte buffer,
+     *  without the buffer.
+     */
+    public static long hashCID(long k0, long k1, byte[] hash, long epoch) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        // four little-endian words of the hash, the epoch,
+        // then the final block, length 40 and no leftover bytes
+        for (int i = 0; i < 6; i++) {
+            long m;
+            if (i < 4)
+                m = littleEndian(hash, i * 8);
+            else if (i == 4)
+                m = Long.reverseBytes(epoch);
+            else
+                m = 40L << 56;
+            v3 ^= m;
+            for (int r = 0; r < 2; r++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= m;
+        }
+        v2 ^= 0xff;
+        for (int r = 0; r < 4; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private static long littleEndian(byte[] b, int off) {
+        long rv = 0;
+        for (int i = off + 7; i >= off; i--) {
+            rv = (rv << 8) | (b[i] & 0xff);
+        }
+        return rv;
+    }
+
+/****
+    // allocation per announce to an existing swarm and peer, before and after,
+    // and a check of hashCID() against SipHashInline
+    public static void main(String[] args) {
+        int n = 1000;
+        int runs = 2000000;
+        Torrents torrents = new Torrents(27*60, 20*60);
+        java.util.Random r = new java.util.Random();
+        byte[][] packets = new byte[n][MIN_LENGTH];
+        for (int i = 0; i < n; i++) {
+            byte[] p = packets[i];
+            r.nextBytes(p);
+            // same swarm, 0 left half the time, want 25
+            System.arraycopy(packets[0], IH_OFFSET, p, IH_OFFSET, InfoHash.LENGTH);
+            DataHelper.toLong8(p, LEFT_OFFSET, i & 1);
+            DataHelper.toLong(p, EVENT_OFFSET, 4, 0);
+            DataHelper.toLong(p, WANT_OFFSET, 4, 25);
+            UDPAnnounce a = new UDPAnnounce(25);
+            a.wrap(p);
+            Peers peers = torrents.get(a.getInfoHashProbe());
+            if (peers == null) {
+                InfoHash ih = a.createInfoHash(torrents);
+                peers = torrents.createPeers(ih);
+                torrents.putIfAbsent(ih, peers);
+            }
+            byte[] h = new byte[HASH_LEN];
+            r.nextBytes(h);
+            Peer peer = new Peer(a.createPID(torrents).getData(), new net.i2p.data.Hash(h));
+            peer.setLeft(i & 1);
+            peers.putIfAbsent(new PID(peer.getIDBytes()), peer);
+        }
+        long k0 = r.nextLong();
+        long k1 = r.nextLong();
+        byte[] dh = new byte[HASH_LEN];
+        for (int i = 0; i < 100000; i++) {
+            r.nextBytes(dh);
+            long epoch = r.nextLong();
+            byte[] buf = new byte[40];
+            System.arraycopy(dh, 0, buf, 0, HASH_LEN);
+            DataHelper.toLong8(buf, HASH_LEN, epoch);
+            if (hashCID(k0, k1, dh, epoch) != net.i2p.crypto.SipHashInline.hash24(k0, k1, buf))
+                throw new IllegalStateException("hashCID mismatch");
+        }
+        java.lang.management.ThreadMXBean tmx = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean smx = (com.sun.management.ThreadMXBean) tmx;
+        long tid = Thread.currentThread().getId();
+        UDPAnnounce a = new UDPAnnounce(25);
+        long sink = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            // as in UDPHandler before 0.20.0
+            long a0 = smx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                byte[] data = packets[i % n];
+                byte[] buf = new byte[40];
+                System.arraycopy(dh, 0, buf, 0, HASH_LEN);
+                DataHelper.toLong8(buf, HASH_LEN, 1);
+                sink += net.i2p.crypto.SipHashInline.hash24(k0, k1, buf);
+                buf = new byte[40];
+                System.arraycopy(dh, 0, buf, 0, HASH_LEN);
+                DataHelper.toLong8(buf, HASH_LEN, 0);
+                sink += net.i2p.crypto.SipHashInline.hash24(k0, k1, buf);
+                byte[] bih = new byte[InfoHash.LENGTH];
+                System.arraycopy(data, IH_OFFSET, bih, 0, InfoHash.LENGTH);
+                InfoHash ih = new InfoHash(bih);
+                byte[] bpid = new byte[PID.LENGTH];
+                System.arraycopy(data, PID_OFFSET, bpid, 0, PID.LENGTH);
+                PID pid = new PID(bpid);
+                long left = DataHelper.fromLong8(data, LEFT_OFFSET);
+                Peers peers = torrents.get(ih);
+                Peer p = peers.get(pid);
+                p.setLeft(left);
+                byte[] hashes = peers.getRandomHashes(25, pid, p.isSeed());
+                sink += hashes.length;
+            }
+            long t1 = System.nanoTime();
+            long a1 = smx.getThreadAllocatedBytes(tid);
+            for (int i = 0; i < runs; i++) {
+                byte[] data = packets[i % n];
+                sink += hashCID(k0, k1, dh, 1);
+                sink += hashCID(k0, k1, dh, 0);
+                a.wrap(data);
+                long left = a.getLeft();
+                Peers peers = torrents.get(a.getInfoHashProbe());
+                peers.updateIfPresent(data, PID_OFFSET, left <= 0, System.currentTimeMillis());
+                sink += peers.getRandomHashes(25, data, PID_OFFSET, left <= 0, a.getHashBuffer(), 0, a.getCounts());
+            }
+            long t2 = System.nanoTime();
+            long a2 = smx.getThreadAllocatedBytes(tid);
+            System.out.println("Before: " + ((t1 - t0) / runs) + " ns, " + ((a1 - a0) / runs) + " bytes per announce");
+            System.out.println("After:  " + ((t2 - t1) / runs) + " ns, " + ((a2 - a1) / runs) + " bytes per announce");
+        }
+        System.out.println(sink);
+    }
+****/
+}
@@ -16,18 +16,23 @@ package net.i2p.zzzot;
  *
  */
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -36,14 +41,15 @@ import net.i2p.client.I2PSessionException;
 import net.i2p.client.I2PSessionMuxedListener;
 import net.i2p.client.datagram.Datagram2;
 import net.i2p.client.datagram.Datagram3;
-import net.i2p.crypto.SipHashInline;
+import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 import net.i2p.i2ptunnel.I2PTunnel;
+import net.i2p.util.FileUtil;
 import net.i2p.util.I2PAppThread;
-import net.i2p.util.LHMCache;
 import net.i2p.util.Log;
+import net.i2p.util.SecureFileOutputStream;
 import net.i2p.util.SimpleTimer2;
 
 /**
@@ -58,12 +64,29 @@ public class UDPHandler implements I2PSessionMuxedListener {
     private final Log _log;
     private final I2PTunnel _tunnel;
     private final ZzzOT _zzzot;
+    private final RequestThrottle _throttle;
     private final Cleaner _cleaner;
+    private final File _stateFile;
     private final long sipk0, sipk1;
-    private final Map<Hash, Destination> _destCache;
+    private final DestCache _destCache;
+    private final AtomicInteger _connects = new AtomicInteger();
+    private final ThreadLocal<UDPAnnounce> _decoder = new ThreadLocal<UDPAnnounce>() {
+        @Override
+        protected UDPAnnounce initialValue() {
+            return new UDPAnnounce(MAX_RESPONSES);
+        }
+    };
     private final AtomicInteger _announces = new AtomicInteger();
+    private final AtomicInteger _runCount = new AtomicInteger();
     private volatile boolean _running;
-    private ThreadPoolExecutor _executor;
+    /** keys not from the state file, save them after loading */
+    private final boolean _newKeys;
+    /** the destinations in the state file are loaded, so we may overwrite it */
+    private volatile boolean _loaded;
+    private final AtomicBoolean _saving = new AtomicBoolean();
+    private final boolean _virtualThreads;
+    private ExecutorService _executor;
+    private volatile DestLookupService _lookups;
     /** how long to wait before dropping an idle thread */
     private static final long HANDLER_KEEPALIVE_MS = 2*60*1000;
 
@@ -84,32 +107,94 @@ public class UDPHandler implements I2PSessionMuxedListener {
     private final long LOOKUP_TIMEOUT = 2000;
     private final long CLEAN_TIME;
     private final long STAT_TIME = 2*60*1000;
+    private static final long STATE_TIME = 10*60*1000;
+    private static final byte[] STATE_MAGIC = DataHelper.getASCII("ZzzOTudp");
+    private static final int STATE_VERSION = 1;
     private static final byte[] INVALID = DataHelper.getUTF8("Invalid connection ID");
     private static final byte[] PROTOCOL = DataHelper.getUTF8("Bad protocol");
     private static final byte[] SCRAPE = DataHelper.getUTF8("Scrape unsupported");
 
-    public UDPHandler(I2PAppContext ctx, I2PTunnel tunnel, ZzzOT zzzot, int port) {
+    /**
+     *  @param stateFile for the connection ID keys and the destination cache,
+     *                   as of 0.20.0
+     *  @param virtualThreads do lookups on virtual threads if available, as of 0.20.0
+     */
+    public UDPHandler(I2PAppContext ctx, I2PTunnel tunnel, ZzzOT zzzot, int port, File stateFile,
+                      boolean virtualThreads) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPHandler.class);
         _tunnel = tunnel;
         _zzzot = zzzot;
+        _throttle = zzzot.getThrottle();
         CLEAN_TIME = (zzzot.getTorrents().getUDPLifetime() + 60) * 1000;
         PORT = port;
         _cleaner = new Cleaner();
-        sipk0 = ctx.random().nextLong();
-        sipk1 = ctx.random().nextLong();
+        _stateFile = stateFile;
+        _virtualThreads = virtualThreads;
         // the highest-traffic zzzot is running about 3000 announces/minute,
-        // give us enough to respond to the first announce after the connection
-        _destCache = new LHMCache<Hash, Destination>(1024);
+        // give us enough to respond to the first announce after the connection.
+        // As of 0.20.0, the capacity follows the connect rate
+        _destCache = new DestCache(DestCache.MIN_CAPACITY);
+        // just the header here, the destinations are loaded in the background
+        long[] keys = loadKeys();
+        if (keys != null) {
+            sipk0 = keys[0];
+            sipk1 = keys[1];
+            _newKeys = false;
+        } else {
+            sipk0 = ctx.random().nextLong();
+            sipk1 = ctx.random().nextLong();
+            _newKeys = true;
+        }
     }
 
     public synchronized void start() {
         _running = true;
-        _executor = new CustomThreadPoolExecutor();
-        _executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
-        (new I2PAppThread(new Waiter(), "ZzzOT UDP startup", true)).start();
+        if (_virtualThreads)
+            _executor = VirtualThreads.newExecutor("ZzzOT lookup ");
+        if (_executor == null) {
+            ThreadPoolExecutor tpe = new CustomThreadPoolExecutor();
+            tpe.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+            _executor = tpe;
+        } else if (_log.shouldInfo()) {
+            _log.info("lookups on virtual threads");
+        }
+        _lookups = new DestLookupService(_context, _executor, _destCache, PORT, LOOKUP_TIMEOUT);
         long[] r = new long[] { 5*60*1000 };
         _context.statManager().createRequiredRateStat("plugin.zzzot.announces.udp", "UDP announces per minute", "Plugins", r);
+        _context.statManager().createRequiredRateStat(DestLookupService.STAT_QUEUE, "UDP replies waiting for lookups", "Plugins", r);
+        _context.statManager().createRequiredRateStat(DestLookupService.STAT_COALESCED, "UDP replies joining a lookup in flight (percent)", "Plugins", r);
+        _context.statManager().createRequiredRateStat(DestLookupService.STAT_TIME, "UDP reply lookup time (ms)", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.udpDestCacheHits", "UDP announce destination cache hit percentage", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.udpDestCacheEvictions", "UDP destination cache evictions per minute", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.udpDestCacheRejected", "UDP destination cache admissions rejected per minute", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.udpDestCacheSize", "UDP destination cache capacity", "Plugins", r);
+        if (!_loaded)
+            (new I2PAppThread(new Loader(), "ZzzOT UDP state loader", true)).start();
+        // The tunnel is started in the background,
+        // so the session may not be there yet
+        if (!attach())
+            (new I2PAppThread(new Waiter(), "ZzzOT UDP startup", true)).start();
+    }
+
+    /**
+     *  Add our listeners to the tunnel's session, if it has one yet.
+     *
+     *  @return success
+     *  @since 0.20.0 split out of Waiter
+     */
+    private boolean attach() {
+        // requires I2P 0.9.53 (1.7.0)
+        List<I2PSession> sessions = _tunnel.getSessions();
+        if (sessions.isEmpty())
+            return false;
+        I2PSession session = sessions.get(0);
+        session.addMuxedSessionListener(UDPHandler.this, I2PSession.PROTO_DATAGRAM2, PORT);
+        session.addMuxedSessionListener(UDPHandler.this, I2PSession.PROTO_DATAGRAM3, PORT);
+        _cleaner.schedule(STAT_TIME);
+        if (_log.shouldInfo())
+            _log.info("got session");
+        return true;
     }
 
     /**
@@ -117,30 +202,229 @@ public class UDPHandler implements I2PSessionMuxedListener {
      */
     public synchronized void stop() {
         _running = false;
-        _executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+        if (_executor instanceof ThreadPoolExecutor)
+            ((ThreadPoolExecutor) _executor).setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         _executor.shutdownNow();
         _executor = null;
         _cleaner.cancel();
+        saveState();
         _context.statManager().removeRateStat("plugin.zzzot.announces.udp");
+        _context.statManager().removeRateStat(DestLookupService.STAT_QUEUE);
+        _context.statManager().removeRateStat(DestLookupService.STAT_COALESCED);
+        _context.statManager().removeRateStat(DestLookupService.STAT_TIME);
+        _context.statManager().removeRateStat("plugin.zzzot.udpDestCacheHits");
+        _context.statManager().removeRateStat("plugin.zzzot.udpDestCacheEvictions");
+        _context.statManager().removeRateStat("plugin.zzzot.udpDestCacheRejected");
+        _context.statManager().removeRateStat("plugin.zzzot.udpDestCacheSize");
         _announces.set(0);
     }
 
+    /**
+     *  Load the connection ID keys from the state file header,
+     *  so clients with a connection ID from before a restart
+     *  don't all have to reconnect at once.
+     *  The destinations are loaded later by the Loader.
+     *
+     *  The keys are only kept if the file was written recently enough
+     *  that a connection ID made with them could still be valid.
+     *  Otherwise, we start with new keys, but still load the cache.
+     *
+     *  Format, big-endian:
+     *<pre>
+     *  magic "ZzzOTudp" (8)
+     *  version (4)
+     *  time written (8)
+     *  sipk0 (8)
+     *  sipk1 (8)
+     *  destination count (4)
+     *  destinations, least recently used first
+     *</pre>
+     *
+     *  @return the keys, or null if none or too old
+     *  @since 0.20.0
+     */
+    private long[] loadKeys() {
+        if (!_stateFile.exists())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_stateFile)));
+            long[] hdr = readHeader(in);
+            // the current and previous epochs are valid, see validateCID()
+            long age = _context.clock().now() - hdr[0];
+            if (age >= 0 && age < 2 * CLEAN_TIME)
+                return new long[] { hdr[1], hdr[2] };
+            if (_log.shouldInfo())
+                _log.info("UDP state keys expired");
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed loading UDP state " + _stateFile, ioe);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return null;
+    }
+
+    /**
+     *  @return time written, sipk0, sipk1
+     *  @since 0.20.0
+     */
+    private static long[] readHeader(DataInputStream in) throws IOException {
+        byte[] magic = new byte[STATE_MAGIC.length];
+        in.readFully(magic);
+        if (!DataHelper.eq(magic, STATE_MAGIC))
+            throw new IOException("bad magic");
+        int version = in.readInt();
+        if (version != STATE_VERSION)
+            throw new IOException("unsupported version " + version);
+        return new long[] { in.readLong(), in.readLong(), in.readLong() };
+    }
+
+    /**
+     *  Load the destination cache. Stops if we are stopped.
+     *  See loadKeys() for the format.
+     *
+     *  @return success, false if stopped
+     *  @since 0.20.0
+     */
+    private boolean loadDestinations() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_stateFile)));
+            readHeader(in);
+            int n = in.readInt();
+            if (n < 0 || n > DestCache.MAX_CAPACITY)
+                throw new IOException("bad count " + n);
+            // plus 25%, as the stripes aren't evenly filled
+            _destCache.setCapacity(Math.max(n * 5 / 4, _destCache.getCapacity()));
+            for (int i = 0; i < n; i++) {
+                if (!_running)
+                    return false;
+                Destination d = Destination.create(in);
+                _destCache.putUnchecked(d.calculateHash(), d);
+                count++;
+            }
+            if (_log.shouldInfo())
+                _log.info("Loaded " + count + " destinations from " + _stateFile +
+                          " in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed loading UDP state " + _stateFile + ", loaded " + count + " destinations", ioe);
+        } catch (DataFormatException dfe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed loading UDP state " + _stateFile + ", loaded " + count + " destinations", dfe);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ioe) {}
+        }
+        return true;
+    }
+
+    /**
+     *  Fill the destination cache from the state file in the background,
+     *  so UDP can start right away. Announces that arrive first
+     *  may need a lookup, as after a restart without a state file.
+     *
+     *  @since 0.20.0
+     */
+    private class Loader implements Runnable {
+        public void run() {
+            if (_stateFile.exists() && !loadDestinations())
+                return;
+            if (!_running)
+                return;
+            _loaded = true;
+            // so a crash before the first periodic save keeps them
+            if (_newKeys)
+                saveState();
+        }
+    }
+
+    /**
+     *  Save in the background, not on the timer thread,
+     *  as it may be several MB and is synced to disk.
+     *  Does nothing if a save is already in progress.
+     *
+     *  @since 0.20.0
+     */
+    private void startSave() {
+        if (_saving.compareAndSet(false, true)) {
+            (new I2PAppThread(new Runnable() {
+                public void run() {
+                    try {
+                        saveState();
+                    } finally {
+                        _saving.set(false);
+                    }
+                }
+            }, "ZzzOT UDP state saver", true)).start();
+        }
+    }
+
+    /**
+     *  Write the connection ID keys and the destination cache
+     *  to a temp file, then rename it. See loadKeys() for the format.
+     *  Does nothing if the destinations were not loaded yet,
+     *  to keep the previous file.
+     *  Blocking, call startSave() from the timer.
+     *
+     *  @since 0.20.0
+     */
+    private synchronized void saveState() {
+        if (!_loaded)
+            return;
+        // least recently used first, no more than the current capacity
+        List<Destination> dests = _destCache.values();
+        File tmp = new File(_stateFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        DataOutputStream out = null;
+        try {
+            fos = new SecureFileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeLong(_context.clock().now());
+            out.writeLong(sipk0);
+            out.writeLong(sipk1);
+            out.writeInt(dests.size());
+            for (Destination d : dests) {
+                d.writeBytes(out);
+            }
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            if (!FileUtil.rename(tmp, _stateFile)) {
+                if (_log.shouldWarn())
+                    _log.warn("Failed rename UDP state " + tmp + " to " + _stateFile);
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed saving UDP state " + _stateFile, ioe);
+            if (out != null) try { out.close(); } catch (IOException e) {}
+            tmp.delete();
+        } catch (DataFormatException dfe) {
+            if (_log.shouldWarn())
+                _log.warn("Failed saving UDP state " + _stateFile, dfe);
+            if (out != null) try { out.close(); } catch (IOException e) {}
+            tmp.delete();
+        }
+    }
+
+    /**
+     *  There's no session-ready callback in I2PTunnel,
+     *  so poll, starting fast and backing off to once a second.
+     */
     private class Waiter implements Runnable {
         public void run() {
+            long delay = 50;
             while (_running) {
-                // requires I2P 0.9.53 (1.7.0)
-                List<I2PSession> sessions = _tunnel.getSessions();
-                if (sessions.isEmpty()) {
-                    try { Thread.sleep(1000); } catch (InterruptedException ie) { break; }
-                    continue;
-                }
-                I2PSession session = sessions.get(0);
-                session.addMuxedSessionListener(UDPHandler.this, I2PSession.PROTO_DATAGRAM2, PORT);
-                session.addMuxedSessionListener(UDPHandler.this, I2PSession.PROTO_DATAGRAM3, PORT);
-                _cleaner.schedule(STAT_TIME);
-                if (_log.shouldInfo())
-                    _log.info("got session");
-                break;
+                if (attach())
+                    break;
+                try { Thread.sleep(delay); } catch (InterruptedException ie) { break; }
+                delay = Math.min(2 * delay, 1000);
             }
         }
     }
@@ -203,6 +487,10 @@ public class UDPHandler implements I2PSessionMuxedListener {
         }
         long connID = DataHelper.fromLong8(data, 0);
         int action = (int) DataHelper.fromLong(data, 8, 4);
+        // Throttles are only charged for requests from someone we know is
+        // the sender, a dg2 connect or a dg3 announce with a valid conn ID,
+        // so spoofed dg3 packets can't use up someone else's budget.
+        // Drop, don't reply, the client will back off.
         if (action == ACTION_CONNECT) {
             if (connID != MAGIC) {
                 if (_log.shouldWarn())
@@ -216,6 +504,11 @@ public class UDPHandler implements I2PSessionMuxedListener {
                 sendError(session, fromHash, fromPort, transID, PROTOCOL);
                 return;
             }
+            if (!_throttle.allow(RequestThrottle.CONNECT, from.calculateHash())) {
+                if (_log.shouldDebug())
+                    _log.debug("throttled connect");
+                return;
+            }
             handleConnect(session, from, fromPort, data);
         } else if (action == ACTION_ANNOUNCE) {
             if (fromHash == null) {
@@ -230,10 +523,16 @@ public class UDPHandler implements I2PSessionMuxedListener {
             if (_log.shouldWarn())
                 _log.warn("got unsupported scrape");
             int transID = (int) DataHelper.fromLong(data, 12, 4);
-            if (from != null)
+            if (from != null) {
+                if (!_throttle.allow(RequestThrottle.SCRAPE, from.calculateHash())) {
+                    if (_log.shouldDebug())
+                        _log.debug("throttled scrape");
+                    return;
+                }
                 sendError(session, from, fromPort, transID, SCRAPE);
-            else
+            } else {
                 sendError(session, fromHash, fromPort, transID, SCRAPE);
+            }
         } else {
             if (_log.shouldWarn())
                 _log.warn("dropping bad action " + action);
@@ -245,6 +544,7 @@ public class UDPHandler implements I2PSessionMuxedListener {
      *  @param from non-null
      */
     private void handleConnect(I2PSession session, Destination from, int fromPort, byte[] data) {
+        _connects.incrementAndGet();
         int transID = (int) DataHelper.fromLong(data, 12, 4);
         long connID = generateCID(from.calculateHash());
         byte[] resp = new byte[18];
@@ -256,9 +556,7 @@ public class UDPHandler implements I2PSessionMuxedListener {
             session.sendMessage(from, resp, I2PSession.PROTO_DATAGRAM_RAW, PORT, fromPort);
             if (_log.shouldDebug())
                 _log.debug("sent connect reply with conn ID " + connID + " to " + from.toBase32());
-            synchronized(_destCache) {
-                _destCache.put(from.calculateHash(), from);
-            }
+            _destCache.put(from.calculateHash(), from);
         } catch (I2PSessionException ise) {
             if (_log.shouldWarn())
                 _log.warn("error sending connect reply", ise);
@@ -270,12 +568,15 @@ public class UDPHandler implements I2PSessionMuxedListener {
      */
     private void handleAnnounce(I2PSession session, long connID, Hash fromHash, int fromPort, byte[] data) {
         int sz = data.length;
-        if (sz < 96) {
+        if (sz < UDPAnnounce.MIN_LENGTH) {
             if (_log.shouldWarn())
                 _log.warn("dropping short announce length " + sz);
             return;
         }
-        int transID = (int) DataHelper.fromLong(data, 12, 4);
+        // parse packet in place
+        UDPAnnounce ann = _decoder.get();
+        ann.wrap(data);
+        int transID = ann.getTransactionID();
         boolean ok = validateCID(fromHash, connID);
         if (!ok) {
             if (_log.shouldWarn())
@@ -283,101 +584,78 @@ public class UDPHandler implements I2PSessionMuxedListener {
             sendError(session, fromHash, fromPort, transID, INVALID);
             return;
         }
+        if (!_throttle.allow(RequestThrottle.ANNOUNCE, fromHash)) {
+            if (_log.shouldDebug())
+                _log.debug("throttled announce");
+            return;
+        }
 
-        // parse packet
-        byte[] bih = new byte[InfoHash.LENGTH];
-        System.arraycopy(data, 16, bih, 0, InfoHash.LENGTH);
-        InfoHash ih = new InfoHash(bih);
-        byte[] bpid = new byte[PID.LENGTH];
-        System.arraycopy(data, 36, bpid, 0, PID.LENGTH);
-        PID pid = new PID(bpid);
         // ignored
         //long dl = DataHelper.fromLong8(data, 56);
         //long ul = DataHelper.fromLong8(data, 72);
-        int event = (int) DataHelper.fromLong(data, 80, 4);
-        long left = event == EVENT_COMPLETED ? 0 : DataHelper.fromLong8(data, 64);
+        int event = ann.getEvent();
+        long left = event == EVENT_COMPLETED ? 0 : ann.getLeft();
         // ignored
         //long ip = DataHelper.fromLong(data, 84, 4);
         //long key = DataHelper.fromLong(data, 88, 4);
-        // Note: BEP 15 spec default is -1 but we read as a positive long
-        long want = DataHelper.fromLong(data, 92, 4);
+        long want = ann.getNumWant();
         if (want > MAX_RESPONSES)
             want = MAX_RESPONSES;
         // ignored
         //int port = (int) DataHelper.fromLong(data, 96, 2);
 
         Torrents torrents = _zzzot.getTorrents();
-        Peers peers = torrents.get(ih);
+        Peers peers = torrents.get(ann.getInfoHashProbe());
         if (peers == null && event != EVENT_STOPPED) {
             _announces.incrementAndGet();
-            peers = new Peers();
+            InfoHash ih = ann.createInfoHash(torrents);
+            peers = torrents.createPeers(ih);
             Peers p2 = torrents.putIfAbsent(ih, peers);
             if (p2 != null)
                 peers = p2;
         }
-        int size;
         int seeds;
-        List<Peer> peerlist;
+        int leeches;
+        int hashes;
         if (event == EVENT_STOPPED) {
             if (peers != null)
-                peers.remove(pid);
-            peerlist = null;
-            size = 0;
+                peers.remove(data, UDPAnnounce.PID_OFFSET);
+            hashes = 0;
             seeds = 0;
+            leeches = 0;
         } else {
-            Peer p = peers.get(pid);
-            if (p == null) {
-                p = new Peer(pid.getData(), fromHash);
-                Peer p2 = peers.putIfAbsent(pid, p);
-                if (p2 != null)
-                    p = p2;
+            boolean isSeed = left <= 0;
+            if (!peers.updateIfPresent(data, UDPAnnounce.PID_OFFSET, isSeed, System.currentTimeMillis())) {
+                PID pid = ann.createPID(torrents);
+                Peer p = new Peer(pid.getData(), fromHash);
+                p.setLeft(left);
+                if (peers.putIfAbsent(pid, p) != null)
+                    peers.updateIfPresent(data, UDPAnnounce.PID_OFFSET, isSeed, p.lastSeen());
             }
-            p.setLeft(left);
 
-            size = peers.size();
-            seeds = peers.countSeeds();
-            if (want <= 0 || event == EVENT_STOPPED) {
-                peerlist = null;
-            } else {
-                peerlist = new ArrayList<Peer>(peers.values());
-                peerlist.remove(p);   // them
-                if (want < size - 1) {
-                    if (size > 150) {
-                        // If size is huge, use random iterator for efficiency
-                        List<Peer> rv = new ArrayList<Peer>(size);
-                        for (RandomIterator<Peer> iter = new RandomIterator<Peer>(peerlist); iter.hasNext(); ) {
-                            rv.add(iter.next());
-                        }
-                        peerlist = rv;
-                    } else {
-                        Collections.shuffle(peerlist, _context.random());
-                        peerlist = peerlist.subList(0, (int) want);
-                    }
-                }
-            }
+            // not including them, and no seeds to seeds,
+            // and the counts under the same lock
+            int[] counts = ann.getCounts();
+            hashes = peers.getRandomHashes((int) Math.max(want, 0), data, UDPAnnounce.PID_OFFSET, isSeed,
+                                           ann.getHashBuffer(), 0, counts);
+            seeds = counts[0];
+            leeches = counts[1];
         }
 
-        int count = peerlist != null ? peerlist.size() : 0;
-        byte[] resp = new byte[20 + (32 * count)];
+        int hlen = hashes * 32;
+        byte[] resp = new byte[20 + hlen];
         resp[3] = (byte) ACTION_ANNOUNCE;
         DataHelper.toLong(resp, 4, 4, transID);
         DataHelper.toLong(resp, 8, 4, torrents.getInterval());
-        DataHelper.toLong(resp, 12, 4, size - seeds);
+        DataHelper.toLong(resp, 12, 4, leeches);
         DataHelper.toLong(resp, 16, 4, seeds);
-        if (peerlist != null) {
-            for (int i = 0; i < count; i++) {
-                System.arraycopy(peerlist.get(i).getHashBytes(), 0, resp, 20 + (i * 32), 32);
-            }
-        }
+        if (hlen > 0)
+            System.arraycopy(ann.getHashBuffer(), 0, resp, 20, hlen);
 
         Destination from = lookupCache(fromHash);
         if (from == null) {
-            try {
-                _executor.execute(new Lookup(session, fromHash, fromPort, resp));
-            } catch (RejectedExecutionException ree) {
-                if (_log.shouldWarn())
-                    _log.warn("error sending announce reply - thread pool full");
-            }
+            // one lookup per hash, replies are sent when it completes
+            _lookups.send(session, fromHash, fromPort, resp);
             return;
         }
 
@@ -425,17 +703,6 @@ public class UDPHandler implements I2PSessionMuxedListener {
         }
     }
 
-    /**
-     *  Blocking.
-     *  @return null on failure
-     */
-    private Destination lookup(I2PSession session, Hash hash) {
-        Destination rv = lookupCache(hash);
-        if (rv != null)
-            return rv;
-        return lookupI2CP(session, hash);
-    }
-
     /**
      *  Nonblocking.
      *  @return null on failure
@@ -443,101 +710,63 @@ public class UDPHandler implements I2PSessionMuxedListener {
     private Destination lookupCache(Hash hash) {
         // Test deferred
         //if (true) return null;
-        synchronized(_destCache) {
-            return _destCache.get(hash);
-        }
-    }
-
-    /**
-     *  Blocking.
-     *  @return null on failure
-     */
-    private Destination lookupI2CP(I2PSession session, Hash hash) {
-        Destination rv;
-        try {
-            rv = session.lookupDest(hash, LOOKUP_TIMEOUT);
-        } catch (I2PSessionException ise) {
-            if (_log.shouldWarn())
-                _log.warn("lookup error", ise);
-            return null;
-        }
-        if (rv == null) {
-            if (_log.shouldWarn())
-                _log.warn("lookup failed for response to " + hash.toBase32());
-        }
-        return rv;
+        return _destCache.get(hash);
     }
 
     private long generateCID(Hash hash) {
-        byte[] buf = new byte[40];
-        System.arraycopy(hash.getData(), 0, buf, 0, 32);
         long time = _context.clock().now() / CLEAN_TIME;
-        DataHelper.toLong8(buf, 32, time);
-        return SipHashInline.hash24(sipk0, sipk1, buf);
+        return UDPAnnounce.hashCID(sipk0, sipk1, hash.getData(), time);
     }
 
     private boolean validateCID(Hash hash, long cid) {
-        byte[] buf = new byte[40];
-        System.arraycopy(hash.getData(), 0, buf, 0, 32);
+        byte[] h = hash.getData();
         // current epoch
         long time = _context.clock().now() / CLEAN_TIME;
-        DataHelper.toLong8(buf, 32, time);
-        long c = SipHashInline.hash24(sipk0, sipk1, buf);
-        if (cid == c)
+        if (cid == UDPAnnounce.hashCID(sipk0, sipk1, h, time))
             return true;
         // previous epoch
-        time--;
-        DataHelper.toLong8(buf, 32, time);
-        c = SipHashInline.hash24(sipk0, sipk1, buf);
-        return cid == c;
+        return cid == UDPAnnounce.hashCID(sipk0, sipk1, h, time - 1);
     }
 
     /**
-     *  Update the announce stat and set the announce count to 0
+     *  Update the announce stat and set the announce count to 0.
+     *  As of 0.20.0, also save the UDP state periodically,
+     *  so the keys survive a crash, and size the destination cache
+     *  from the connect rate.
      */
     private class Cleaner extends SimpleTimer2.TimedEvent {
         public Cleaner() { super(_context.simpleTimer2()); }
         public void timeReached() {
             long count = _announces.getAndSet(0);
-            _context.statManager().addRateData("plugin.zzzot.announces.udp",  count / (STAT_TIME / (60*1000L)));
-            schedule(STAT_TIME);
-        }
-    }
-
-    /**
-     *  Until we have a nonblocking lookup API in I2CP
-     *
-     *  @since 0.20.0
-     */
-    private class Lookup implements Runnable {
-        private final I2PSession _session;
-        private final Hash _hash;
-        private final int _port;
-        private final byte[] _msg;
-
-        public Lookup(I2PSession sess, Hash h, int port, byte[] msg) {
-            _session = sess;
-            _hash = h;
-            _port = port;
-            _msg = msg;
-        }
-
-        public void run() {
-            // blocking
-            Destination d = lookupI2CP(_session, _hash);
-            if (d == null) {
-                if (_log.shouldWarn())
-                    _log.warn("deferred lookup failed for " + _hash.toBase32());
-                return;
-            }
-            try {
-                _session.sendMessage(d, _msg, I2PSession.PROTO_DATAGRAM_RAW, PORT, _port);
-                if (_log.shouldDebug())
-                    _log.debug("sent deferred reply to " + _hash.toBase32());
-            } catch (I2PSessionException ise) {
-                if (_log.shouldWarn())
-                    _log.warn("error sending deferred reply", ise);
+            long minutes = STAT_TIME / (60*1000L);
+            _context.statManager().addRateData("plugin.zzzot.announces.udp",  count / minutes);
+            // enough for everybody who connected in a connection ID lifetime, plus 25%
+            long connects = _connects.getAndSet(0) / minutes;
+            long capacity = connects * (CLEAN_TIME / (60*1000L)) * 5 / 4;
+            // grow right away, shrink slowly
+            int cur = _destCache.getCapacity();
+            if (capacity < cur)
+                capacity = Math.max(capacity, cur - (cur / 8));
+            _destCache.setCapacity((int) Math.min(capacity, DestCache.MAX_CAPACITY));
+            int hits = _destCache.getHitRate();
+            if (hits >= 0)
+                _context.statManager().addRateData("plugin.zzzot.udpDestCacheHits", hits);
+            _context.statManager().addRateData("plugin.zzzot.udpDestCacheEvictions", _destCache.getEvictions() / minutes);
+            _context.statManager().addRateData("plugin.zzzot.udpDestCacheRejected", _destCache.getRejected() / minutes);
+            _context.statManager().addRateData("plugin.zzzot.udpDestCacheSize", _destCache.getCapacity());
+            DestLookupService lookups = _lookups;
+            if (lookups != null) {
+                _context.statManager().addRateData(DestLookupService.STAT_QUEUE, lookups.getQueueDepth());
+                int pct = lookups.getCoalescePercent();
+                if (pct >= 0)
+                    _context.statManager().addRateData(DestLookupService.STAT_COALESCED, pct);
+                long dropped = lookups.getDropped();
+                if (dropped > 0 && _log.shouldWarn())
+                    _log.warn(dropped + " UDP replies dropped waiting for lookups");
             }
+            if (_runCount.incrementAndGet() % (STATE_TIME / STAT_TIME) == 0)
+                startSave();
+            schedule(STAT_TIME);
         }
     }
 
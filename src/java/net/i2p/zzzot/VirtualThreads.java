@@ -0,0 +1,88 @@
+package net.i2p.zzzot;
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *  Java 21 virtual threads, by reflection, as we compile for Java 8.
+ *
+ *  @since 0.20.0
+ */
+class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /**
+     *  @return true if Java 21 or higher
+     */
+    public static boolean isAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     *  A new virtual thread for each task, named prefix + counter.
+     *  The threads are always daemon threads.
+     *
+     *  @return null if unavailable
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> cls = Class.forName("java.lang.Thread$Builder");
+            builder = cls.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            ThreadFactory tf = (ThreadFactory) cls.getMethod("factory").invoke(builder);
+            Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) m.invoke(null, tf);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Jetty 10.0.13+, 11.0.13+, and 12 can run requests on virtual threads,
+     *  if we give the thread pool an executor. Jetty 9 cannot.
+     *
+     *  @param threadPool the server's thread pool
+     *  @return success
+     */
+    public static boolean setJettyExecutor(Object threadPool, String prefix) {
+        Method m;
+        try {
+            m = threadPool.getClass().getMethod("setVirtualThreadsExecutor", Executor.class);
+        } catch (Exception e) {
+            return false;
+        }
+        ExecutorService ex = newExecutor(prefix);
+        if (ex == null)
+            return false;
+        try {
+            m.invoke(threadPool, ex);
+            return true;
+        } catch (Exception e) {
+            ex.shutdown();
+            return false;
+        }
+    }
+}
@@ -16,9 +16,16 @@ package net.i2p.zzzot;
  *
  */
 
-import java.util.Iterator;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.I2PAppContext;
@@ -32,11 +39,42 @@ class ZzzOT {
     private final I2PAppContext _context;
     private final Torrents _torrents;
     private final Cleaner _cleaner;
-    private final long EXPIRE_TIME;
+    private volatile ForkJoinPool _pool;
+    /** null if disabled */
+    private final Snapshot _snapshot;
+    /** null if disabled */
+    private final Journal _journal;
+    private final FullScrape _fullScrape;
+    private final RequestThrottle _throttle;
 
     private static final String PROP_INTERVAL = "interval";
     private static final String PROP_UDP_LIFETIME = "lifetime";
+    private static final String PROP_OFFHEAP = "offheap";
+    private static final String PROP_OFFHEAP_MAX = "offheapMax";
+    /** MB */
+    private static final int DEFAULT_OFFHEAP_MAX = 256;
+    private static final String PROP_SEED_PERCENT = "seedPercent";
+    private static final String PROP_SHARDS = "shards";
+    private static final String PROP_SNAPSHOT = "snapshot";
+    private static final String PROP_JOURNAL = "journal";
+    private static final String PROP_FULL_SCRAPE_INTERVAL = "fullScrapeInterval";
+    private static final String PROP_MAX_FULL_SCRAPES = "maxFullScrapes";
+    private static final int DEFAULT_FULL_SCRAPE_INTERVAL = 5*60;
+    private static final int DEFAULT_MAX_FULL_SCRAPES = 2;
+    /** in order of the RequestThrottle actions, config is e.g. announceLimit */
+    private static final String[] THROTTLE_ACTIONS = { "connect", "announce", "scrape" };
+    private static final String PROP_LIMIT_SUFFIX = "Limit";
+    /** per minute per requestor */
+    private static final int[] DEFAULT_LIMITS = { 60, 300, 60 };
+    private static final String THROTTLE_STAT = "plugin.zzzot.throttled.";
+    private static final String SNAPSHOT_FILE = "torrents.dat";
+    private static final long SNAPSHOT_TIME = 10*60*1000;
     private static final long CLEAN_TIME = 2*60*1000;
+    /** a little longer than the cleaner, which refreshes it */
+    private static final long FULL_SCRAPE_AGE = CLEAN_TIME + 60*1000;
+    private static final int MAX_CLEAN_THREADS = 4;
+    /** swarms per cleaner task before splitting */
+    private static final int CLEAN_THRESHOLD = 256;
     private static final int DEFAULT_INTERVAL = 27*60;
     private static final int DEFAULT_UDP_LIFETIME = 20*60;
     private static final int MIN_INTERVAL = 15*60;
@@ -44,7 +82,10 @@ class ZzzOT {
     private static final int MIN_UDP_LIFETIME = 60;
     private static final int MAX_UDP_LIFETIME = 6*60*60;
 
-    ZzzOT(I2PAppContext ctx, Properties p) {
+    /**
+     *  @param dir the plugin directory, for the snapshot
+     */
+    ZzzOT(I2PAppContext ctx, Properties p, File dir) {
         String intv = p.getProperty(PROP_INTERVAL);
         int interval = DEFAULT_INTERVAL;
         if (intv != null) {
@@ -67,8 +108,76 @@ class ZzzOT {
                     interval = MAX_UDP_LIFETIME;
             } catch (NumberFormatException nfe) {}
         }
-        _torrents = new Torrents(interval, lifetime);
-        EXPIRE_TIME = 1000 * (interval + interval / 2);
+        long offHeapMax = 0;
+        if (Boolean.parseBoolean(p.getProperty(PROP_OFFHEAP))) {
+            int mb = DEFAULT_OFFHEAP_MAX;
+            intv = p.getProperty(PROP_OFFHEAP_MAX);
+            if (intv != null) {
+                try {
+                    mb = Math.max(4, Integer.parseInt(intv));
+                } catch (NumberFormatException nfe) {}
+            }
+            offHeapMax = mb * 1024L * 1024L;
+        }
+        intv = p.getProperty(PROP_SEED_PERCENT);
+        int seedPercent = Peers.DEFAULT_SEED_PERCENT;
+        if (intv != null) {
+            try {
+                seedPercent = Integer.parseInt(intv);
+                if (seedPercent < 0)
+                    seedPercent = 0;
+                else if (seedPercent > 100)
+                    seedPercent = 100;
+            } catch (NumberFormatException nfe) {}
+        }
+        intv = p.getProperty(PROP_SHARDS);
+        int shards = Torrents.DEFAULT_SHARDS;
+        if (intv != null) {
+            try {
+                shards = Integer.parseInt(intv);
+                if (shards < 1)
+                    shards = 1;
+                else if (shards > Torrents.MAX_SHARDS)
+                    shards = Torrents.MAX_SHARDS;
+            } catch (NumberFormatException nfe) {}
+        }
+        long expire = 1000L * (interval + interval / 2);
+        // the journal requires the snapshot as its base
+        if (Boolean.parseBoolean(p.getProperty(PROP_JOURNAL)))
+            _journal = new Journal(ctx, dir);
+        else
+            _journal = null;
+        _torrents = new Torrents(interval, lifetime, expire, offHeapMax, seedPercent, shards, _journal);
+        if (_journal != null || Boolean.parseBoolean(p.getProperty(PROP_SNAPSHOT)))
+            _snapshot = new Snapshot(ctx, _torrents, new File(dir, SNAPSHOT_FILE), expire, _journal);
+        else
+            _snapshot = null;
+        intv = p.getProperty(PROP_FULL_SCRAPE_INTERVAL);
+        int fsInterval = DEFAULT_FULL_SCRAPE_INTERVAL;
+        if (intv != null) {
+            try {
+                fsInterval = Math.max(0, Integer.parseInt(intv));
+            } catch (NumberFormatException nfe) {}
+        }
+        intv = p.getProperty(PROP_MAX_FULL_SCRAPES);
+        int maxFullScrapes = DEFAULT_MAX_FULL_SCRAPES;
+        if (intv != null) {
+            try {
+                maxFullScrapes = Math.max(1, Integer.parseInt(intv));
+            } catch (NumberFormatException nfe) {}
+        }
+        _fullScrape = new FullScrape(_torrents, FULL_SCRAPE_AGE, fsInterval * 1000L, maxFullScrapes);
+        int[] limits = new int[THROTTLE_ACTIONS.length];
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = DEFAULT_LIMITS[i];
+            intv = p.getProperty(THROTTLE_ACTIONS[i] + PROP_LIMIT_SUFFIX);
+            if (intv != null) {
+                try {
+                    limits[i] = Math.max(0, Integer.parseInt(intv));
+                } catch (NumberFormatException nfe) {}
+            }
+        }
+        _throttle = new RequestThrottle(limits);
         _cleaner  = new Cleaner(ctx);
         _context = ctx;
     }
@@ -77,23 +186,80 @@ class ZzzOT {
         return _torrents;
     }
 
+    /**
+     *  @since 0.20.0
+     */
+    FullScrape getFullScrape() {
+        return _fullScrape;
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    RequestThrottle getThrottle() {
+        return _throttle;
+    }
+
     void start() {
+        int threads = Math.max(1, Math.min(MAX_CLEAN_THREADS, Runtime.getRuntime().availableProcessors()));
+        _pool = new ForkJoinPool(threads, new CleanerThreadFactory(), null, false);
+        // before the load, so the replay is only of the old files
+        if (_journal != null)
+            _journal.start();
+        if (_snapshot != null)
+            _snapshot.startLoad();
         _cleaner.forceReschedule(CLEAN_TIME);
         long[] r = new long[] { 5*60*1000 };
         _context.statManager().createRequiredRateStat("plugin.zzzot.announces", "Total announces per minute", "Plugins", r);
         _context.statManager().createRequiredRateStat("plugin.zzzot.peers", "Number of peers", "Plugins", r);
         _context.statManager().createRequiredRateStat("plugin.zzzot.torrents", "Number of torrents", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.expiredPeers", "Peers expired per cleaner pass", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.expiredTorrents", "Torrents removed per cleaner pass", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.cleanTime", "Cleaner pass time (ms)", "Plugins", r);
+        _context.statManager().createRequiredRateStat("plugin.zzzot.destCacheHits", "HTTP announce destination cache hit percentage", "Plugins", r);
+        if (_torrents.getArena() != null) {
+            _context.statManager().createRequiredRateStat("plugin.zzzot.offHeapUsed", "Off-heap peer storage in use (KB)", "Plugins", r);
+            _context.statManager().createRequiredRateStat("plugin.zzzot.offHeapFallbacks", "Swarm resizes kept on the heap, off-heap full, per cleaner pass", "Plugins", r);
+        }
+        for (String action : THROTTLE_ACTIONS) {
+            _context.statManager().createRequiredRateStat(THROTTLE_STAT + action, "Throttled " + action + "s per minute", "Plugins", r);
+        }
     }
 
     void stop() {
         _cleaner.cancel();
+        ForkJoinPool pool = _pool;
+        if (pool != null)
+            pool.shutdownNow();
+        if (_snapshot != null) {
+            _snapshot.stop();
+            if (_journal != null)
+                _journal.stop();
+            _snapshot.write();
+        }
         _torrents.clear();
+        _fullScrape.clear();
+        _throttle.clear();
         _context.statManager().removeRateStat("plugin.zzzot.announces");
         _context.statManager().removeRateStat("plugin.zzzot.peers");
         _context.statManager().removeRateStat("plugin.zzzot.torrents");
+        _context.statManager().removeRateStat("plugin.zzzot.expiredPeers");
+        _context.statManager().removeRateStat("plugin.zzzot.expiredTorrents");
+        _context.statManager().removeRateStat("plugin.zzzot.cleanTime");
+        _context.statManager().removeRateStat("plugin.zzzot.destCacheHits");
+        _context.statManager().removeRateStat("plugin.zzzot.offHeapUsed");
+        _context.statManager().removeRateStat("plugin.zzzot.offHeapFallbacks");
+        for (String action : THROTTLE_ACTIONS) {
+            _context.statManager().removeRateStat(THROTTLE_STAT + action);
+        }
     }
 
-    private class Cleaner extends SimpleTimer2.TimedEvent {
+    /**
+     *  The timer event only hands the pass to our own pool,
+     *  so a large pass never delays the router's other timers.
+     *  The next pass is scheduled when this one finishes.
+     */
+    private class Cleaner extends SimpleTimer2.TimedEvent implements Runnable {
 
         private final AtomicInteger _runCount = new AtomicInteger();
 
@@ -103,27 +269,125 @@ class ZzzOT {
         }
 
         public void timeReached() {
+            ForkJoinPool pool = _pool;
+            if (pool == null)
+                return;
+            try {
+                pool.execute(this);
+            } catch (RejectedExecutionException ree) {
+                // stopping
+            }
+        }
+
+        /**
+         *  As of 0.20.0, only the swarms that are due
+         *  on each shard's expiry wheel, not every peer,
+         *  one task per shard, split across the pool's threads.
+         */
+        public void run() {
             long now = System.currentTimeMillis();
+            try {
+                int shards = _torrents.getShardCount();
+                List<CleanTask> tasks = new ArrayList<CleanTask>(shards);
+                for (int i = 0; i < shards; i++) {
+                    TorrentShard shard = _torrents.getShard(i);
+                    List<Peers> due = shard.getExpiryWheel().advance(now);
+                    if (!due.isEmpty())
+                        tasks.add(new CleanTask(shard, due, 0, due.size(), now));
+                }
+                ForkJoinTask.invokeAll(tasks);
+                int[] counts = new int[2];
+                for (CleanTask task : tasks) {
+                    int[] c = task.join();
+                    counts[0] += c[0];
+                    counts[1] += c[1];
+                }
+                long time = System.currentTimeMillis() - now;
+                _context.statManager().addRateData("plugin.zzzot.announces",  _torrents.getAnnounces() / (CLEAN_TIME / (60*1000L)));
+                _context.statManager().addRateData("plugin.zzzot.peers",  _torrents.countPeers());
+                _context.statManager().addRateData("plugin.zzzot.torrents",  _torrents.size());
+                _context.statManager().addRateData("plugin.zzzot.expiredPeers", counts[0]);
+                _context.statManager().addRateData("plugin.zzzot.expiredTorrents", counts[1]);
+                _context.statManager().addRateData("plugin.zzzot.cleanTime", time);
+                int hits = _torrents.getDestHashCache().getHitRate();
+                if (hits >= 0)
+                    _context.statManager().addRateData("plugin.zzzot.destCacheHits", hits);
+                DirectArena arena = _torrents.getArena();
+                if (arena != null) {
+                    _context.statManager().addRateData("plugin.zzzot.offHeapUsed", arena.getUsed() / 1024);
+                    _context.statManager().addRateData("plugin.zzzot.offHeapFallbacks", arena.getFallbacks());
+                }
+                _throttle.clean();
+                for (int i = 0; i < THROTTLE_ACTIONS.length; i++) {
+                    _context.statManager().addRateData(THROTTLE_STAT + THROTTLE_ACTIONS[i], _throttle.getRejected(i) / (CLEAN_TIME / (60*1000L)));
+                }
+                _fullScrape.refresh();
+                if (_snapshot != null && _runCount.incrementAndGet() % (SNAPSHOT_TIME / CLEAN_TIME) == 0)
+                    _snapshot.write();
+            } finally {
+                ForkJoinPool pool = _pool;
+                if (pool != null && !pool.isShutdown())
+                    schedule(CLEAN_TIME);
+            }
+        }
+    }
+
+    /**
+     *  Expire a range of a shard's due swarms, splitting it in half
+     *  until small enough.
+     *
+     *  @since 0.20.0
+     */
+    private static class CleanTask extends RecursiveTask<int[]> {
+        private final TorrentShard _shard;
+        private final List<Peers> _due;
+        private final int _lo, _hi;
+        private final long _now;
+
+        public CleanTask(TorrentShard shard, List<Peers> due, int lo, int hi, long now) {
+            _shard = shard;
+            _due = due;
+            _lo = lo;
+            _hi = hi;
+            _now = now;
+        }
+
+        /**
+         *  @return peers expired, torrents removed
+         */
+        protected int[] compute() {
+            if (_hi - _lo > CLEAN_THRESHOLD) {
+                int mid = (_lo + _hi) >>> 1;
+                CleanTask left = new CleanTask(_shard, _due, _lo, mid, _now);
+                left.fork();
+                int[] rv = new CleanTask(_shard, _due, mid, _hi, _now).compute();
+                int[] l = left.join();
+                rv[0] += l[0];
+                rv[1] += l[1];
+                return rv;
+            }
             int peers = 0;
-            for (Iterator<Peers> iter = _torrents.values().iterator(); iter.hasNext(); ) {
-                Peers p = iter.next();
-                int recent = 0;
-                for (Iterator<Peer> iterp = p.values().iterator(); iterp.hasNext(); ) {
-                     Peer peer = iterp.next();
-                     if (peer.lastSeen() < now - EXPIRE_TIME)
-                         iterp.remove();
-                     else
-                         recent++;
+            int torrents = 0;
+            for (int i = _lo; i < _hi; i++) {
+                Peers p = _due.get(i);
+                peers += p.expire(_now);
+                if (p.isEmpty() && _shard.remove(p.getInfoHash(), p)) {
+                    p.close();
+                    torrents++;
                 }
-                if (recent <= 0)
-                    iter.remove();
-                else
-                    peers += recent;
             }
-            _context.statManager().addRateData("plugin.zzzot.announces",  _torrents.getAnnounces() / (CLEAN_TIME / (60*1000L)));
-            _context.statManager().addRateData("plugin.zzzot.peers",  peers);
-            _context.statManager().addRateData("plugin.zzzot.torrents",  _torrents.size());
-            schedule(CLEAN_TIME);
+            return new int[] { peers, torrents };
+        }
+    }
+
+    /**
+     *  @since 0.20.0
+     */
+    private static class CleanerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread rv = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            rv.setName("ZzzOT Cleaner " + rv.getPoolIndex());
+            return rv;
         }
     }
 }
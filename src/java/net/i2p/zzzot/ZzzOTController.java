@@ -19,9 +19,17 @@ package net.i2p.zzzot;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.i2p.CoreVersion;
 import net.i2p.I2PAppContext;
@@ -63,7 +71,7 @@ public class ZzzOTController implements ClientApp {
     private final String[] _args;
     private final ClientAppManager _mgr;
     private Server _server;
-    private TunnelController _tunnel;
+    private volatile TunnelController _tunnel;
     private final ZzzOT _zzzot;
     /** only for main() */
     private static volatile ZzzOTController _controller;
@@ -72,10 +80,16 @@ public class ZzzOTController implements ClientApp {
     private static boolean _showfooter;
     private static String _footertext;
     private static boolean _fullScrape;
+    private static boolean _announceServlet = true;
+    private static int _maxScrapeHashes;
     private final boolean _enableUDP;
+    private final boolean _virtualThreads;
     private final int _udpPort;
-    private UDPHandler _udp;
-    private String _b32;
+    /** @since 0.20.0 atomic so a failed start and the UDP step don't both stop it */
+    private final AtomicReference<UDPHandler> _udp = new AtomicReference<UDPHandler>();
+    /** @since 0.20.0 */
+    private volatile CompletableFuture<Void> _udpStart;
+    private volatile String _b32;
 
     private ClientAppState _state = UNINITIALIZED;
 
@@ -89,11 +103,21 @@ public class ZzzOTController implements ClientApp {
     private static final String PROP_FOOTERTEXT = "footertext";
     private static final String PROP_FULLSCRAPE = "allowFullScrape";
     private static final String DEFAULT_FULLSCRAPE = "false";
+    private static final String PROP_ANNOUNCE_SERVLET = "announceServlet";
+    private static final String DEFAULT_ANNOUNCE_SERVLET = "true";
+    private static final String PROP_MAX_SCRAPE_HASHES = "maxScrapeHashes";
+    private static final int DEFAULT_MAX_SCRAPE_HASHES = 100;
+    private static final int MAX_MAX_SCRAPE_HASHES = 1000;
+    private static final String PROP_VIRTUAL_THREADS = "virtualThreads";
+    private static final String DEFAULT_VIRTUAL_THREADS = "false";
     private static final String PROP_UDP = "udp";
     private static final String DEFAULT_UDP = "false";
     private static final String PROP_UDP_PORT = "udp";
     private static final int DEFAULT_UDP_PORT = 6969;
     private static final String CONFIG_FILE = "zzzot.config";
+    private static final String UDP_STATE_FILE = "udp.dat";
+    private static final String[] STARTUP_PHASES = { "keys", "tracker", "jetty", "tunnel", "udp", "total" };
+    private static final int STARTUP_THREADS = 3;
     private static final String BACKUP_SUFFIX = ".jetty8";
     private static final String[] xmlFiles = {
         "jetty.xml", "contexts/base-context.xml", "contexts/cgi-context.xml",
@@ -119,12 +143,29 @@ public class ZzzOTController implements ClientApp {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("No config file " + cfile);
         }
-        _zzzot = new ZzzOT(ctx, props);
+        _zzzot = new ZzzOT(ctx, props, new File(_context.getAppDir(), "plugins/zzzot"));
         _sitename = props.getProperty(PROP_SITENAME, DEFAULT_SITENAME);
         _showfooter = Boolean.parseBoolean(props.getProperty(PROP_SHOWFOOTER, DEFAULT_SHOWFOOTER));
         _footertext = props.getProperty(PROP_FOOTERTEXT, DEFAULT_FOOTERTEXT);
         _fullScrape = Boolean.parseBoolean(props.getProperty(PROP_FULLSCRAPE, DEFAULT_FULLSCRAPE));
+        _announceServlet = Boolean.parseBoolean(props.getProperty(PROP_ANNOUNCE_SERVLET, DEFAULT_ANNOUNCE_SERVLET));
+        int m = DEFAULT_MAX_SCRAPE_HASHES;
+        String max = props.getProperty(PROP_MAX_SCRAPE_HASHES);
+        if (max != null) {
+            try {
+                m = Integer.parseInt(max);
+                if (m < 1)
+                    m = 1;
+                else if (m > MAX_MAX_SCRAPE_HASHES)
+                    m = MAX_MAX_SCRAPE_HASHES;
+            } catch (NumberFormatException nfe) {
+                m = DEFAULT_MAX_SCRAPE_HASHES;
+            }
+        }
+        _maxScrapeHashes = m;
         _enableUDP = Boolean.parseBoolean(props.getProperty(PROP_UDP, DEFAULT_UDP));
+        _virtualThreads = Boolean.parseBoolean(props.getProperty(PROP_VIRTUAL_THREADS, DEFAULT_VIRTUAL_THREADS)) &&
+                          VirtualThreads.isAvailable();
         int p = DEFAULT_UDP_PORT;
         String port = props.getProperty(PROP_UDP_PORT);
         if (port != null) {
@@ -166,6 +207,28 @@ public class ZzzOTController implements ClientApp {
         return ctrlr._zzzot.getTorrents();
     }
 
+    /**
+     *  @return null if not running
+     *  @since 0.20.0
+     */
+    public static FullScrape getFullScrape() {
+        ZzzOTController ctrlr = getThis();
+        if (ctrlr == null)
+            return null;
+        return ctrlr._zzzot.getFullScrape();
+    }
+
+    /**
+     *  @return null if not running
+     *  @since 0.20.0
+     */
+    public static RequestThrottle getThrottle() {
+        ZzzOTController ctrlr = getThis();
+        if (ctrlr == null)
+            return null;
+        return ctrlr._zzzot.getThrottle();
+    }
+
     /**
      *  @return announces per minute, 0 if not running
      *  @since 0.20.0
@@ -249,46 +312,164 @@ public class ZzzOTController implements ClientApp {
     }
 
     /**
+     *  As of 0.20.0, startup is a dependency graph, so the steps
+     *  that don't depend on each other run in parallel:
+     *
+     *<pre>
+     *  keys ----+---- jetty
+     *           +---- tunnel ----+
+     *  tracker ------------------+---- udp
+     *</pre>
+     *
+     *  Only keys, tracker, and jetty are waited for. The tunnel is
+     *  started in the background, as building tunnels can take minutes
+     *  after a router restart, and the UDP handler attaches to the
+     *  session when it is ready, so we are RUNNING without them.
+     *
+     *  The startup executor is shut down when the UDP step completes,
+     *  as it can't be submitted until the tunnel is started.
+     *  If startup fails, the UDP step is cancelled, or the handler
+     *  it started is stopped.
+     *
+     *  Each step is timed, and logged and added to a stat.
+     *
      *  @param args ignored
      */
     private void start(String args[]) {
         //File pluginDir = new File(args[1]);
-        File pluginDir = new File(_context.getAppDir(), "plugins/zzzot");
+        final File pluginDir = new File(_context.getAppDir(), "plugins/zzzot");
         if (!pluginDir.exists())
             throw new IllegalArgumentException("Plugin directory " + pluginDir.getAbsolutePath() + " does not exist");
 
-        // We create the private key file in advance, so that we can
-        // create the help.html file from the templates
-        // without waiting for i2ptunnel to create it AND build the tunnels before returning.
-        Destination dest = null;
+        final long begin = System.currentTimeMillis();
+        long[] r = new long[] { 60*60*1000 };
+        for (String phase : STARTUP_PHASES) {
+            _context.statManager().createRequiredRateStat("plugin.zzzot.startup." + phase, "Startup " + phase + " time (ms)", "Plugins", r);
+        }
+        final ExecutorService exec = Executors.newFixedThreadPool(STARTUP_THREADS, new StartupThreadFactory());
+        final AtomicBoolean failed = new AtomicBoolean();
+        CompletableFuture<Void> udp = null;
+        try {
+            CompletableFuture<Destination> keys = CompletableFuture.supplyAsync(() -> {
+                long start = System.currentTimeMillis();
+                Destination rv = createKeys(pluginDir);
+                phaseDone("keys", start);
+                return rv;
+            }, exec);
+            CompletableFuture<Void> tracker = CompletableFuture.runAsync(() -> {
+                long start = System.currentTimeMillis();
+                _zzzot.start();
+                phaseDone("tracker", start);
+            }, exec);
+            CompletableFuture<Void> jetty = keys.thenAcceptAsync(dest -> {
+                long start = System.currentTimeMillis();
+                startJetty(pluginDir, dest);
+                phaseDone("jetty", start);
+            }, exec);
+            CompletableFuture<Void> tunnel = keys.thenRunAsync(() -> {
+                long start = System.currentTimeMillis();
+                startI2PTunnel(pluginDir);
+                phaseDone("tunnel", start);
+            }, exec);
+            // requires I2P 0.9.66 (2.9.0)
+            udp = tunnel.runAfterBothAsync(tracker, () -> {
+                if (!_enableUDP || failed.get())
+                    return;
+                long start = System.currentTimeMillis();
+                UDPHandler u = new UDPHandler(_context, _tunnel.getTunnel(), _zzzot, _udpPort,
+                                              new File(pluginDir, UDP_STATE_FILE), _virtualThreads);
+                u.start();
+                _udp.set(u);
+                // startup failed while we were starting
+                if (failed.get())
+                    stopUDP();
+                else
+                    phaseDone("udp", start);
+            }, exec);
+            // not joined, stop() waits for it
+            _udpStart = udp.whenComplete((v, t) -> {
+                exec.shutdown();
+                if (t != null && !failed.get())
+                    _log.error("ZzzOT UDP start failed", t);
+            });
+            CompletableFuture.allOf(jetty, tracker).join();
+        } catch (RuntimeException re) {
+            failed.set(true);
+            if (udp != null)
+                udp.cancel(false);
+            else
+                exec.shutdown();
+            // if it was already running
+            stopUDP();
+            if (re instanceof CompletionException) {
+                Throwable t = re.getCause();
+                if (t instanceof RuntimeException)
+                    throw (RuntimeException) t;
+                throw new IllegalArgumentException("Start failed " + t);
+            }
+            throw re;
+        }
+        phaseDone("total", begin);
+    }
+
+    /**
+     *  Log and add to the stat
+     *
+     *  @since 0.20.0
+     */
+    private void phaseDone(String phase, long start) {
+        long time = System.currentTimeMillis() - start;
+        if (_log.shouldInfo())
+            _log.info("Startup " + phase + " took " + time + " ms");
+        _context.statManager().addRateData("plugin.zzzot.startup." + phase, time);
+    }
+
+    /**
+     *  We create the private key file in advance, so that we can
+     *  create the help.html file from the templates
+     *  without waiting for i2ptunnel to create it AND build the tunnels before returning.
+     *
+     *  As of 0.20.0, also get the b32 from an existing file,
+     *  so we don't have to start the tunnel first.
+     *
+     *  @return the new destination, or null if it already existed
+     *  @since 0.20.0 split out of start()
+     */
+    private Destination createKeys(File pluginDir) {
         File key = new File(pluginDir, "eepPriv.dat");
-        if (!key.exists()) {
-            PrivateKeyFile pkf = new PrivateKeyFile(new File(pluginDir, "eepPriv.dat"));
+        PrivateKeyFile pkf = new PrivateKeyFile(key);
+        if (key.exists()) {
             try {
-                dest = pkf.createIfAbsent();
+                _b32 = pkf.getDestination().calculateHash().toBase32();
             } catch (Exception e) {
-                _log.error("Unable to create " + key.getAbsolutePath() + ' ' + e);
-                throw new IllegalArgumentException("Unable to create " + key.getAbsolutePath() + ' ' + e);
+                _log.error("Unable to read " + key.getAbsolutePath() + ' ' + e);
+                throw new IllegalArgumentException("Unable to read " + key.getAbsolutePath() + ' ' + e);
             }
-            _log.logAlways(Log.INFO, "NOTICE: ZzzOT: New eepsite keys created in " + key.getAbsolutePath());
-            _log.logAlways(Log.INFO, "NOTICE: ZzzOT: You should back up this file!");
-            String b32 = Base32.encode(dest.calculateHash().getData()) + ".b32.i2p";
-            String b64 = dest.toBase64();
-            _log.logAlways(Log.INFO, "NOTICE: ZzzOT: Your base 32 address is " + b32);
-            _log.logAlways(Log.INFO, "NOTICE: ZzzOT: Your base 64 address is " + b64);
+            return null;
         }
-        startJetty(pluginDir, dest);
-        startI2PTunnel(pluginDir, dest);
-        _zzzot.start();
-        // requires I2P 0.9.66 (2.9.0)
-        if (_enableUDP) {
-            _udp = new UDPHandler(_context, _tunnel.getTunnel(), _zzzot, _udpPort);
-            _udp.start();
+        Destination dest;
+        try {
+            dest = pkf.createIfAbsent();
+        } catch (Exception e) {
+            _log.error("Unable to create " + key.getAbsolutePath() + ' ' + e);
+            throw new IllegalArgumentException("Unable to create " + key.getAbsolutePath() + ' ' + e);
         }
+        _log.logAlways(Log.INFO, "NOTICE: ZzzOT: New eepsite keys created in " + key.getAbsolutePath());
+        _log.logAlways(Log.INFO, "NOTICE: ZzzOT: You should back up this file!");
+        String b32 = Base32.encode(dest.calculateHash().getData()) + ".b32.i2p";
+        String b64 = dest.toBase64();
+        _log.logAlways(Log.INFO, "NOTICE: ZzzOT: Your base 32 address is " + b32);
+        _log.logAlways(Log.INFO, "NOTICE: ZzzOT: Your base 64 address is " + b64);
+        _b32 = dest.calculateHash().toBase32();
+        return dest;
     }
 
-
-    private void startI2PTunnel(File pluginDir, Destination dest) {
+    /**
+     *  As of 0.20.0, always started in the background,
+     *  as we have the b32 from createKeys().
+     *  The UDP handler attaches to the session when it is ready.
+     */
+    private void startI2PTunnel(File pluginDir) {
         File i2ptunnelConfig = new File(pluginDir, "i2ptunnel.config");
         Properties i2ptunnelProps = new Properties();
         try {
@@ -301,19 +482,9 @@ public class ZzzOTController implements ClientApp {
         if (p == null || p.equals("4,0"))
             i2ptunnelProps.setProperty("tunnel.0.option.i2cp.leaseSetEncType", "4");
         TunnelController tun = new TunnelController(i2ptunnelProps, "tunnel.0.");
-        if (dest == null) {
-            // start in foreground so we can get the destination
-            tun.startTunnel();
-            _b32 = tun.getMyDestHashBase32();
-            List msgs = tun.clearMessages();
-            for (Object s : msgs) {
-                 _log.logAlways(Log.INFO, "NOTICE: ZzzOT Tunnel message: " + s);
-            }
-        } else {
-            _b32 = dest.calculateHash().toBase32();
-            tun.startTunnelBackground();
-        }
+        // so stop() finds it if this fails
         _tunnel = tun;
+        tun.startTunnelBackground();
     }
 
     private void startJetty(File pluginDir, Destination dest) {
@@ -327,6 +498,10 @@ public class ZzzOTController implements ClientApp {
             Resource.setDefaultUseCaches(false);
             XmlConfiguration xmlc = new XmlConfiguration(jettyXml.toURI().toURL());
             Server serv = (Server) xmlc.configure();
+            if (_virtualThreads && !VirtualThreads.setJettyExecutor(serv.getThreadPool(), "ZzzOT Jetty ")) {
+                if (_log.shouldInfo())
+                    _log.info("Jetty " + Server.getVersion() + " does not support virtual threads");
+            }
             //HttpContext[] hcs = serv.getContexts();
             //for (int i = 0; i < hcs.length; i++)
             //     hcs[i].setTempDirectory(tmpdir);
@@ -341,11 +516,32 @@ public class ZzzOTController implements ClientApp {
     }
 
     private void stop() {
+        // it doesn't wait for the tunnel, so this is quick
+        CompletableFuture<Void> udpStart = _udpStart;
+        if (udpStart != null) {
+            try {
+                udpStart.join();
+            } catch (CompletionException | CancellationException e) {}
+            _udpStart = null;
+        }
         stopI2PTunnel();
         stopJetty();
-        if (_udp != null)
-            _udp.stop();
+        stopUDP();
         _zzzot.stop();
+        for (String phase : STARTUP_PHASES) {
+            _context.statManager().removeRateStat("plugin.zzzot.startup." + phase);
+        }
+    }
+
+    /**
+     *  Idempotent, safe to call from the UDP startup step and stop()
+     *
+     *  @since 0.20.0
+     */
+    private void stopUDP() {
+        UDPHandler u = _udp.getAndSet(null);
+        if (u != null)
+            u.stop();
     }
 
     private void stopI2PTunnel() {
@@ -514,6 +710,22 @@ public class ZzzOTController implements ClientApp {
         }
     }
 
+    /**
+     *  Just to set the name and set Daemon
+     *
+     *  @since 0.20.0
+     */
+    private static class StartupThreadFactory implements ThreadFactory {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("ZzzOT startup " + _count.incrementAndGet());
+            rv.setDaemon(true);
+            return rv;
+        }
+    }
+
     private static class Launcher implements Runnable {
         public void run() {
             UrlLauncher.main(new String[] { "http://127.0.0.1:7662/help.html" } );
@@ -610,6 +822,24 @@ public class ZzzOTController implements ClientApp {
         return _fullScrape;
     }
 
+    /**
+     *  Max info hashes in one scrape request
+     *
+     *  @since 0.20.0
+     */
+    public static int maxScrapeHashes() {
+        return _maxScrapeHashes;
+    }
+
+    /**
+     *  If false, AnnounceServlet forwards to announce.jsp
+     *
+     *  @since 0.20.0
+     */
+    public static boolean useAnnounceServlet() {
+        return _announceServlet;
+    }
+
     /** @since 0.12.0 */
     private synchronized void changeState(ClientAppState state) {
         _state = state;
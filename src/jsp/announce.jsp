@@ -1,4 +1,4 @@
-<%@page import="java.io.ByteArrayInputStream,java.util.ArrayList,java.util.Collections,java.util.List,java.util.Map,java.util.HashMap,java.util.concurrent.ConcurrentMap,net.i2p.data.Base64,net.i2p.data.Destination,net.i2p.zzzot.*,org.klomp.snark.bencode.BEncoder" %><%
+<%@page import="java.io.ByteArrayInputStream,java.util.Map,java.util.HashMap,java.util.concurrent.ConcurrentMap,net.i2p.data.Base64,net.i2p.data.Destination,net.i2p.zzzot.*,org.klomp.snark.bencode.BEncoder" %><%
 
 /*
  *  Above one-liner is so there is no whitespace -> IllegalStateException
@@ -56,6 +56,7 @@
 	boolean compact = ALLOW_COMPACT_RESPONSE && request.getParameter("compact") != null;
 	// use to enforce destination
         String him = request.getHeader("X-I2P-DestB64");
+        String himHash = request.getHeader("X-I2P-DestHash");
         String xff = request.getHeader("X-Forwarded-For");
         String xfs = request.getHeader("X-Forwarded-Server");
 
@@ -69,6 +70,13 @@
 	        response.setStatus(403);
 	}
 
+	// per-requestor, before doing any work
+	RequestThrottle throttle = ZzzOTController.getThrottle();
+	if (!fail && throttle != null && !throttle.allow(RequestThrottle.ANNOUNCE, himHash)) {
+		fail = true;
+		msg = "rate limited";
+	}
+
 	if (!compact && !ALLOW_NONCOMPACT_RESPONSE && !fail) {
 		fail = true;
 		msg = "non-compact responses unsupported";
@@ -195,7 +203,7 @@
 	} else {
 		Peers peers = torrents.get(ih);
 		if (peers == null) {
-			peers = new Peers();
+			peers = torrents.createPeers(ih);
 			Peers p2 = torrents.putIfAbsent(ih, peers);
 			if (p2 != null)
 				peers = p2;
@@ -216,36 +224,19 @@
 		if (matchIP)
 			p.setLeft(left);
 
+		// the counts and the peers under one lock
+		int[] counts = new int[2];
+		byte[] hashes = peers.getRandomHashes(compact ? Math.max(want, 0) : 0, pid, left <= 0, counts);
 		m.put("interval", torrents.getInterval());
-		int size = peers.size();
-		int seeds = peers.countSeeds();
-		m.put("complete", Integer.valueOf(seeds));
-		m.put("incomplete", Integer.valueOf(size - seeds));
+		m.put("complete", Integer.valueOf(counts[0]));
+		m.put("incomplete", Integer.valueOf(counts[1]));
 		if (want <= 0) {
 			// snark < 0.7.13 always wants a list
 			m.put("peers", java.util.Collections.EMPTY_LIST);
 		} else {
-			List<Peer> peerlist = new ArrayList<Peer>(peers.values());
-			peerlist.remove(p);   // them
-			if (want < size - 1) {
-				if (size > 150) {
-					// If size is huge, use random iterator for efficiency
-					List<Peer> rv = new ArrayList<Peer>(size);
-					for (RandomIterator<Peer> iter = new RandomIterator<Peer>(peerlist); iter.hasNext(); ) {
-						rv.add(iter.next());
-					}
-					peerlist = rv;
-				} else {
-					Collections.shuffle(peerlist);
-					peerlist = peerlist.subList(0, want);
-				}
-			}
 			if (compact) {
-				// one big string
-				byte[] peerhashes = new byte[32 * peerlist.size()];
-				for (int i = 0; i < peerlist.size(); i++)
-					System.arraycopy(peerlist.get(i).getHashBytes(), 0, peerhashes, i * 32, 32);
-				m.put("peers", peerhashes);
+				// one big string, not including them, and no seeds to seeds
+				m.put("peers", hashes);
 			} else if (ALLOW_NONCOMPACT_RESPONSE) {
 				// This requires the Peer entries to be Maps
 				// so they can be bencoded, but we don't save
@@ -1,4 +1,4 @@
-<%@page import="java.util.ArrayList,java.util.List,java.util.Map,java.util.HashMap,net.i2p.zzzot.*,org.klomp.snark.bencode.BEncoder" %><%
+<%@page import="net.i2p.zzzot.*" %><%
 
 /*
  *  Above one-liner is so there is no whitespace -> IllegalStateException
@@ -25,19 +25,17 @@
  * IllegalStateExceptions !!!
  *
  */
-	// so the chars will turn into bytes correctly
-	request.setCharacterEncoding("ISO-8859-1");
-        // above doesn't work for the query string
-        // https://wiki.eclipse.org/Jetty/Howto/International_Characters
-        // we could also do ((org.eclipse.jetty.server.Request) request).setQueryEncoding("ISO-8859-1")
-        request.setAttribute("org.eclipse.jetty.server.Request.queryEncoding", "ISO-8859-1");
 	java.io.OutputStream cout = response.getOutputStream();
 	response.setCharacterEncoding("ISO-8859-1");
 	response.setContentType("text/plain");
         response.setHeader("Pragma", "no-cache");
-	String info_hash = request.getParameter("info_hash");
+	// raw bytes, not through getParameter()
+	// any number of info_hash parameters, up to the configured max
+	int max = ZzzOTController.maxScrapeHashes();
+	java.util.List<byte[]> hashes = AnnounceQuery.parseInfoHashes(request.getQueryString(), max);
         String xff = request.getHeader("X-Forwarded-For");
         String xfs = request.getHeader("X-Forwarded-Server");
+        String himHash = request.getHeader("X-I2P-DestHash");
 
 	boolean fail = false;
 	String msg = "bad";
@@ -49,7 +47,15 @@
 	        response.setStatus(403);
 	}
 
-	boolean all = info_hash == null;
+	// per-requestor, before doing any work
+	RequestThrottle throttle = ZzzOTController.getThrottle();
+	if (!fail && throttle != null && !throttle.allow(RequestThrottle.SCRAPE, himHash)) {
+		fail = true;
+		msg = "rate limited";
+	}
+
+	// not if every info_hash was bad, they're in the list as zero-length
+	boolean all = hashes.isEmpty();
 	if (all && !ZzzOTController.allowFullScrape()) {
 		fail = true;
 		msg = "unsupported";
@@ -61,47 +67,42 @@
 		msg = "tracker is down";
 	}
 
-	InfoHash ih = null;
+	if (all && !fail) {
+		// cached and shared, with conditional GET and gzip
+		FullScrape fs = ZzzOTController.getFullScrape();
+		if (fs != null) {
+			fs.serve(request, response);
+			return;
+		}
+		fail = true;
+		msg = "tracker is down";
+	}
+
+	java.util.List<InfoHash> ihs = null;
 	if ((!all) && !fail) {
-		try {
-			ih = torrents.createInfoHash(info_hash);
-		} catch (Exception e) {
+		if (hashes.size() > max) {
 			fail = true;
-			msg = "bad infohash " + e;
+			msg = "too many infohashes, max " + max;
+		} else {
+			ihs = new java.util.ArrayList<InfoHash>(hashes.size());
+			for (byte[] b : hashes) {
+				if (b.length != InfoHash.LENGTH) {
+					fail = true;
+					// zero for empty or a bad escape
+					msg = b.length > 0 ? "bad infohash length " + b.length : "bad infohash";
+					break;
+				}
+				ihs.add(torrents.createInfoHash(b));
+			}
 		}
 	}
 
-	// build 3-level dictionary
-	Map<String, Object> m = new HashMap<String, Object>(4);
+	// streamed, no 3-level dictionary
 	if (fail) {
-		m.put("failure reason", msg);		
+		ScrapeWriter.writeFailure(cout, msg);
 	} else {
-		List<InfoHash> ihList = new ArrayList<InfoHash>();
-		if (all)
-			ihList.addAll(torrents.keySet());
-		else
-			ihList.add(ih);
-		// requires I2P 0.9.30-8
-		Map<byte[], Map> files = new HashMap<byte[], Map>();
-		for (InfoHash ihash : ihList) {
-			Peers peers = torrents.get(ihash);
-			if (peers == null)
-				continue;
-			Map<String, Object> dict = new HashMap<String, Object>();
-			int size = peers.size();
-			int seeds = peers.countSeeds();
-			dict.put("complete", Integer.valueOf(seeds));
-			dict.put("incomplete", Integer.valueOf(size - seeds));
-			dict.put("downloaded", Integer.valueOf(0));
-			files.put(ihash.getData(), dict);
-		}
-		m.put("files", files);
-	}
-	try {
-		BEncoder.bencode(m, cout);
-	} catch (IllegalArgumentException iae) {
-		// before I2P 0.9.30-8
-		// just let it truncate, wasn't valid before anyway
+		// one pass, in order, duplicates removed
+		ScrapeWriter.write(torrents, ihs, cout);
 	}
 
 /*